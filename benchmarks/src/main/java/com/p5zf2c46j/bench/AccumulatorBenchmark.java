@@ -0,0 +1,72 @@
+package com.p5zf2c46j.bench;
+
+import com.p5zf2c46j.OrbitEngine;
+import com.p5zf2c46j.accum.Accumulator;
+import com.p5zf2c46j.formula.Mceltic;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.p5zf2c46j.util.P3Utils.map;
+
+/**
+ * Cost of adding real orbits to each kind of accumulator. Run it with -t to see how they hold up with more threads,
+ * the default is 4.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(4)
+public class AccumulatorBenchmark {
+    static final int width = 2160, height = 2160;
+    static final double xmin = -2.125, xmax = 1.875, ymin = -2, ymax = 2;
+    static final int maxIter = 1024;
+    static final int orbits = 256;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"THREAD", "SHARED", "STRIPED", "MAPPED"})
+        String mode;
+
+        Accumulator accumulator;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            accumulator = Accumulator.create(Accumulator.Mode.valueOf(mode), 1, width, height);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Orbits {
+        int[][] orbits;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            // escaping orbits with at least one on screen hit, like the ones the renderer adds
+            OrbitEngine engine = new OrbitEngine(new Mceltic(), xmin, xmax, ymin, ymax, width, height, maxIter);
+            Random r = new Random(2137);
+            this.orbits = new int[AccumulatorBenchmark.orbits][];
+            int n = 0;
+            while (n < this.orbits.length) {
+                double a = map(r.nextDouble(), 0, 1, xmin, xmax);
+                double b = map(r.nextDouble(), 0, 1, ymin, ymax);
+                if (engine.iterate(a, b) >= 0 && engine.length > 0) {
+                    this.orbits[n++] = Arrays.copyOf(engine.orbit, engine.length);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void add(Shared shared, Orbits orbits) {
+        int[] orbit = orbits.orbits[orbits.next];
+        orbits.next = (orbits.next + 1) % orbits.orbits.length;
+        shared.accumulator.add(0, orbit, orbit.length, 1);
+    }
+}
@@ -0,0 +1,102 @@
+package com.p5zf2c46j.bench;
+
+import com.p5zf2c46j.util.Complex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.p5zf2c46j.util.Complex.*;
+
+/**
+ * The mceltic step written with the allocating static Complex methods (how the renderer used to do it) against the
+ * in place instance methods and plain doubles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class ComplexBenchmark {
+    static final int samples = 1024;
+    static final int maxIter = 256;
+
+    Complex[] pixels;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(2137);
+        pixels = new Complex[samples];
+        for (int i = 0; i < samples; i++) {
+            pixels[i] = new Complex(r.nextDouble()*4 - 2, r.nextDouble()*4 - 2);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(samples)
+    public int allocating() {
+        int sum = 0;
+        for (Complex pixel : pixels) {
+            Complex z = new Complex();
+            Complex n = new Complex();
+            Complex o = new Complex(Double.NaN, Double.NaN);
+            for (int k = 0; k < maxIter; k++) {
+                n.set(sqr(z));
+                n.x = Math.abs(n.x);
+                n.add(pixel);
+                if (magSqr(n) > 256 || magSqr(sub(n, o)) < 1E-30) {
+                    sum += k;
+                    break;
+                }
+                z.set(n);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(samples)
+    public int inPlace() {
+        int sum = 0;
+        Complex z = new Complex();
+        Complex d = new Complex();
+        Complex o = new Complex(Double.NaN, Double.NaN);
+        for (Complex pixel : pixels) {
+            z.set(0, 0);
+            for (int k = 0; k < maxIter; k++) {
+                z.sqr();
+                z.x = Math.abs(z.x);
+                z.add(pixel);
+                if (magSqr(z) > 256 || magSqr(d.set(z).sub(o)) < 1E-30) {
+                    sum += k;
+                    break;
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(samples)
+    public int primitive() {
+        int sum = 0;
+        for (Complex pixel : pixels) {
+            double a = pixel.x, b = pixel.y;
+            double zx = 0, zy = 0;
+            double ox = Double.NaN, oy = Double.NaN;
+            for (int k = 0; k < maxIter; k++) {
+                double nx = Math.abs(zx*zx - zy*zy) + a;
+                double ny = 2*zx*zy + b;
+                double dx = nx - ox, dy = ny - oy;
+                if (nx*nx + ny*ny > 256 || dx*dx + dy*dy < 1E-30) {
+                    sum += k;
+                    break;
+                }
+                zx = nx;
+                zy = ny;
+            }
+        }
+        return sum;
+    }
+}
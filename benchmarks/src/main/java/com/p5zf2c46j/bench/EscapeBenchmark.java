@@ -0,0 +1,84 @@
+package com.p5zf2c46j.bench;
+
+import com.p5zf2c46j.BatchEscape;
+import com.p5zf2c46j.OrbitEngine;
+import com.p5zf2c46j.formula.Formula;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.p5zf2c46j.util.P3Utils.map;
+
+/**
+ * Time per sample of the first pass of TWICE recording, OrbitEngine.escape one sample at a time against the vector
+ * kernel a column at a time. The vector one needs the main jar built on Java 17 (see the vector profile in its pom).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "--add-modules=jdk.incubator.vector"})
+@State(Scope.Thread)
+public class EscapeBenchmark {
+    static final int width = 2160, height = 2160;
+    static final double xmin = -2.125, xmax = 1.875, ymin = -2, ymax = 2;
+    // as many as a column of the default render has, delta=0.05
+    static final int samples = 43200;
+
+    @Param({"64", "1024", "8192"})
+    int maxIter;
+
+    @Param({"mceltic", "mandelbrot", "burningship"})
+    String formula;
+
+    @Param({"ring", "brent"})
+    String cycles;
+
+    double[] as, bs;
+    int[] escapes, steps;
+    OrbitEngine engine;
+    BatchEscape batch;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(2137);
+        as = new double[samples];
+        bs = new double[samples];
+        escapes = new int[samples];
+        steps = new int[samples];
+        for (int i = 0; i < samples; i++) {
+            as[i] = map(r.nextDouble(), 0, 1, xmin, xmax);
+            bs[i] = map(r.nextDouble(), 0, 1, ymin, ymax);
+        }
+        double epsilon = Math.pow(1e-5 * (xmax - xmin) / width, 2);
+        Formula f = Formula.forName(formula);
+        OrbitEngine.Cycles c = OrbitEngine.Cycles.valueOf(cycles.toUpperCase());
+        engine = new OrbitEngine(f, xmin, xmax, ymin, ymax, width, height, maxIter).cycles(c, epsilon);
+        batch = BatchEscape.vector(f, maxIter, null, c, epsilon);
+        if (batch == null) {
+            throw new IllegalStateException("no vector kernel, the main jar has to be built on Java 17");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(samples)
+    public int scalar() {
+        int sum = 0;
+        for (int i = 0; i < samples; i++) {
+            sum += engine.escape(as[i], bs[i]) + engine.steps;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(samples)
+    public int vector() {
+        batch.escape(as, bs, samples, escapes, steps);
+        int sum = 0;
+        for (int i = 0; i < samples; i++) {
+            sum += escapes[i] + steps[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,125 @@
+package com.p5zf2c46j.bench;
+
+import com.p5zf2c46j.OrbitEngine;
+import com.p5zf2c46j.formula.Mceltic;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.p5zf2c46j.util.P3Utils.map;
+
+/**
+ * The Formula interface against the loop with mceltic written out by hand, both should take the same time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class FormulaBenchmark {
+    static final int width = 2160, height = 2160;
+    static final double xmin = -2.125, xmax = 1.875, ymin = -2, ymax = 2;
+
+    @Param({"256", "4096"})
+    int maxIter;
+
+    double[] as, bs;
+    OrbitEngine engine;
+    Inlined inlined;
+
+    @Setup
+    public void setup() {
+        // the same points every fork so the results can be compared between commits
+        Random r = new Random(2137);
+        as = new double[1024];
+        bs = new double[1024];
+        for (int i = 0; i < as.length; i++) {
+            as[i] = map(r.nextDouble(), 0, 1, xmin, xmax);
+            bs[i] = map(r.nextDouble(), 0, 1, ymin, ymax);
+        }
+        engine = new OrbitEngine(new Mceltic(), xmin, xmax, ymin, ymax, width, height, maxIter);
+        inlined = new Inlined(maxIter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    public int formula() {
+        int sum = 0;
+        for (int i = 0; i < as.length; i++) {
+            sum += engine.iterate(as[i], bs[i]) + engine.length;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    public int inlined() {
+        int sum = 0;
+        for (int i = 0; i < as.length; i++) {
+            sum += inlined.iterate(as[i], bs[i]) + inlined.length;
+        }
+        return sum;
+    }
+
+    /**
+     * OrbitEngine.iterate from before the Formula interface, with the mceltic formula and bailout written in.
+     */
+    static final class Inlined {
+        final int maxIter;
+        final int[] orbit;
+        int length;
+
+        Inlined(int maxIter) {
+            this.maxIter = maxIter;
+            this.orbit = new int[maxIter];
+        }
+
+        int iterate(double a, double b) {
+            length = 0;
+
+            double zx = 0, zy = 0;
+            double p0x = Double.NaN, p0y = Double.NaN;
+            double p1x = Double.NaN, p1y = Double.NaN;
+            double p2x = Double.NaN, p2y = Double.NaN;
+            int slot = 0;
+
+            for (int k = 0; k < maxIter; k++) {
+                double nx = Math.abs(zx*zx - zy*zy) + a;
+                double ny = 2*zx*zy + b;
+
+                if (nx*nx + ny*ny > 256) {
+                    return k;
+                }
+
+                double dx, dy;
+                dx = nx - p0x; dy = ny - p0y;
+                if (dx*dx + dy*dy < 1E-30) return -1;
+                dx = nx - p1x; dy = ny - p1y;
+                if (dx*dx + dy*dy < 1E-30) return -1;
+                dx = nx - p2x; dy = ny - p2y;
+                if (dx*dx + dy*dy < 1E-30) return -1;
+
+                zx = nx;
+                zy = ny;
+
+                switch (slot) {
+                    case 0: p0x = nx; p0y = ny; slot = 1; break;
+                    case 1: p1x = nx; p1y = ny; slot = 2; break;
+                    default: p2x = nx; p2y = ny; slot = 0; break;
+                }
+
+                if (zx < xmin || zx >= xmax || zy < ymin || zy >= ymax) {
+                    continue;
+                }
+
+                int indX = (int) Math.floor(map(zx, xmin, xmax, 0, width));
+                int indY = (int) Math.floor(map(zy, ymax, ymin, 0, height));
+                orbit[length++] = indX + width * indY;
+            }
+
+            return -1;
+        }
+    }
+}
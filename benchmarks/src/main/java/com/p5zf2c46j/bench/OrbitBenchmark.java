@@ -0,0 +1,63 @@
+package com.p5zf2c46j.bench;
+
+import com.p5zf2c46j.OrbitEngine;
+import com.p5zf2c46j.formula.Formula;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.p5zf2c46j.util.P3Utils.map;
+
+/**
+ * Time per sample of OrbitEngine.iterate on starting points spread over the default viewport the same way the
+ * renderer spreads them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class OrbitBenchmark {
+    static final int width = 2160, height = 2160;
+    static final double xmin = -2.125, xmax = 1.875, ymin = -2, ymax = 2;
+    static final int samples = 4096;
+
+    @Param({"64", "1024", "8192"})
+    int maxIter;
+
+    @Param({"mceltic", "mandelbrot"})
+    String formula;
+
+    @Param({"ring", "brent"})
+    String cycles;
+
+    double[] as, bs;
+    OrbitEngine engine;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(2137);
+        as = new double[samples];
+        bs = new double[samples];
+        for (int i = 0; i < samples; i++) {
+            as[i] = map(r.nextDouble(), 0, 1, xmin, xmax);
+            bs[i] = map(r.nextDouble(), 0, 1, ymin, ymax);
+        }
+        // the renderer's default epsilon of 1e-5 pixels
+        double epsilon = Math.pow(1e-5 * (xmax - xmin) / width, 2);
+        engine = new OrbitEngine(Formula.forName(formula), xmin, xmax, ymin, ymax, width, height, maxIter)
+                .cycles(OrbitEngine.Cycles.valueOf(cycles.toUpperCase()), epsilon);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(samples)
+    public int iterate() {
+        int sum = 0;
+        for (int i = 0; i < samples; i++) {
+            sum += engine.iterate(as[i], bs[i]) + engine.length;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,54 @@
+package com.p5zf2c46j.bench;
+
+import com.p5zf2c46j.ToneMap;
+import com.p5zf2c46j.util.PngWriter;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImageIO.write of a 16 bit grayscale PNG against PngWriter's parallel strips, into memory so the disk doesn't get
+ * measured too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class PngBenchmark {
+
+    @Param({"2160"})
+    int size;
+
+    @Param({"1", "4"})
+    int level;
+
+    BufferedImage image;
+    ByteArrayOutputStream out;
+
+    @Setup
+    public void setup() {
+        image = ToneMap.toGray(ToneMapBenchmark.histogram(size), size, size);
+        out = new ByteArrayOutputStream(size*size*2);
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        out.reset();
+        ImageIO.write(image, "png", out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int strips() throws IOException {
+        out.reset();
+        PngWriter.write(image, out, level, ForkJoinPool.commonPool());
+        return out.size();
+    }
+}
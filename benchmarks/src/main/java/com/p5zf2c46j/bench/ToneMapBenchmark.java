@@ -0,0 +1,69 @@
+package com.p5zf2c46j.bench;
+
+import com.p5zf2c46j.ToneMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The min/max and gamma pass that turns a histogram into pixels, against the serial pow version it replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class ToneMapBenchmark {
+
+    @Param({"2160"})
+    int size;
+
+    int[] vals;
+
+    @Setup
+    public void setup() {
+        vals = histogram(size);
+    }
+
+    @Benchmark
+    public BufferedImage toGray() {
+        return ToneMap.toGray(vals, size, size);
+    }
+
+    @Benchmark
+    public BufferedImage serial() {
+        BufferedImage cvs = new BufferedImage(size, size, BufferedImage.TYPE_USHORT_GRAY);
+        short[] pixels = ((DataBufferUShort)cvs.getRaster().getDataBuffer()).getData();
+
+        int bot = vals[0], top = vals[0];
+        for (int v : vals) {
+            bot = Math.min(bot, v);
+        }
+        for (int v : vals) {
+            top = Math.max(top, v);
+        }
+        top++;
+
+        for (int j = 0; j < pixels.length; j++) {
+            double m = (vals[j] - (double) bot) / (top - (double) bot);
+            pixels[j] = (short) (Math.pow(m, 0.5) * 65536);
+        }
+        return cvs;
+    }
+
+    /**
+     * A made up histogram with a long tail like the real ones, always the same for the same size.
+     */
+    static int[] histogram(int size) {
+        Random r = new Random(2137);
+        int[] vals = new int[size*size];
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = (int) Math.exp(r.nextDouble() * r.nextDouble() * 14);
+        }
+        return vals;
+    }
+}
@@ -0,0 +1,193 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.util.Parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.p5zf2c46j.util.P3Utils.getCurrentTimeStamp;
+
+/**
+ * Spends the samples of a grid render where they matter. A quick first pass tries a few random starting points in every
+ * cell of cellSize x cellSize pixels and counts the on screen hits of their orbits. Then every cell gets a jittered grid
+ * with a spacing of delta * 2^k instead of delta, the fewer hits the bigger k, and its orbits count 4^k times.
+ *
+ * A cell gets the same weight per area as with the plain grid no matter what k it got, so the image comes out the same
+ * on average and only gets noisier where the orbits of the cell barely show up anyway. Cells where the first pass didn't
+ * find anything still get the sparsest grid, in case it just missed them.
+ */
+class AdaptiveSampler {
+    // pixels per side of a cell
+    private static final int cellSize = 16;
+    // random starting points per cell in the first pass
+    private static final int probes = 64;
+    // the sparsest cells get a spacing of at most delta * 2^maxLevel
+    private static final int maxLevel = 5;
+
+    private final Renderer renderer;
+    private final int columns, rows;
+    // the k of every cell, row by row
+    private final int[] levels;
+
+    /**
+     * Runs the first pass and works out the spacing of every cell.
+     *
+     * @param budget the fraction of the plain grid's samples to take, roughly
+     */
+    AdaptiveSampler(Renderer renderer, double budget, ForkJoinPool pool) {
+        this.renderer = renderer;
+        this.columns = (renderer.width + cellSize - 1) / cellSize;
+        this.rows = (renderer.height + cellSize - 1) / cellSize;
+
+        double[] hits = contributions(pool);
+        // a cell's grid shouldn't get so sparse that it doesn't have a single column left
+        int top = Math.max(0, Math.min(maxLevel, (int) Math.floor(Math.log(cellSize / renderer.delta) / Math.log(2))));
+        this.levels = allocate(hits, budget, top);
+
+        int[] count = new int[top + 1];
+        for (int k : levels) {
+            count[k]++;
+        }
+        StringBuilder spread = new StringBuilder();
+        for (int k = 0; k <= top; k++) {
+            spread.append(k == 0 ? "" : ", ").append(1 << k).append(": ").append(count[k]);
+        }
+        System.out.println(getCurrentTimeStamp() + String.format(" : Contribution map of %dx%d cells, taking %.1f%% of the grid's samples (cells per spacing %s)",
+                columns, rows, 100 * fraction(levels), spread));
+    }
+
+    /**
+     * @return the root mean square of the on screen hits of the probes of every cell. Taking samples proportionally to
+     * that rather than to the plain average gives the least noise, since a few long orbits make more noise than a lot
+     * of short ones with the same total
+     */
+    private double[] contributions(ForkJoinPool pool) {
+        double[] hits = new double[columns * rows];
+        Parallel.range(pool, 0, hits.length, 1, (from, to) -> {
+            Renderer.Worker w = renderer.worker();
+            for (int c = from; c < to; c++) {
+                int x0 = (c % columns) * cellSize, y0 = (c / columns) * cellSize;
+                int cw = Math.min(cellSize, renderer.width - x0), ch = Math.min(cellSize, renderer.height - y0);
+                SplittableRandom r = new SplittableRandom(c);
+                double sum = 0;
+                for (int i = 0; i < probes; i++) {
+                    double h = w.probe(x0 + r.nextDouble() * cw, y0 + r.nextDouble() * ch);
+                    sum += h*h;
+                }
+                hits[c] = Math.sqrt(sum / probes);
+                renderer.stats.add(w.tally);
+            }
+        });
+        return hits;
+    }
+
+    /**
+     * Gives a cell with h hits a k of about log4(ref / h), so its share of samples is about h / ref, with ref the
+     * smallest one that stays within the budget.
+     */
+    private static int[] allocate(double[] hits, double budget, int top) {
+        double max = 0, min = Double.MAX_VALUE;
+        for (double h : hits) {
+            max = Math.max(max, h);
+            if (h > 0) {
+                min = Math.min(min, h);
+            }
+        }
+        int[] levels = new int[hits.length];
+        if (max == 0) {
+            // nothing to go by, the plain grid it is
+            return levels;
+        }
+
+        // ref as a log, fraction only goes down as it goes up
+        double lo = Math.log(min), hi = Math.log(max) + top * Math.log(4) + 1;
+        levels(hits, lo, top, levels);
+        if (fraction(levels) <= budget) {
+            return levels;
+        }
+        for (int i = 0; i < 60; i++) {
+            double mid = (lo + hi) / 2;
+            levels(hits, mid, top, levels);
+            if (fraction(levels) > budget) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        levels(hits, hi, top, levels);
+        return levels;
+    }
+
+    private static void levels(double[] hits, double logRef, int top, int[] levels) {
+        for (int c = 0; c < hits.length; c++) {
+            if (hits[c] == 0) {
+                levels[c] = top;
+            } else {
+                int k = (int) Math.ceil((logRef - Math.log(hits[c])) / Math.log(4));
+                levels[c] = Math.max(0, Math.min(top, k));
+            }
+        }
+    }
+
+    // the samples all cells take together compared to the plain grid
+    private static double fraction(int[] levels) {
+        double sum = 0;
+        for (int k : levels) {
+            sum += 1.0 / (1L << 2*k);
+        }
+        return sum / levels.length;
+    }
+
+    /**
+     * @return one unit per pass in [fromPass, toPass) and row of cells
+     */
+    List<RecursiveAction> units(int fromPass, int toPass) {
+        List<RecursiveAction> units = new ArrayList<>();
+        for (int p = fromPass; p < toPass; p++) {
+            for (int row = 0; row < rows; row++) {
+                units.add(new CellRow(p, row));
+            }
+        }
+        return units;
+    }
+
+    @SuppressWarnings("serial")
+    private class CellRow extends RecursiveAction {
+        private final int pass, row;
+
+        CellRow(int pass, int row) {
+            this.pass = pass;
+            this.row = row;
+        }
+
+        @Override
+        protected void compute() {
+            Renderer.Worker w = renderer.acquire();
+            if (w == null) {
+                return;
+            }
+            try {
+                double y0 = row * cellSize;
+                double y1 = Math.min(Math.min(renderer.height, y0 + cellSize), w.end);
+                for (int col = 0; col < columns && y0 < y1; col++) {
+                    int c = col + columns * row;
+                    int s = 1 << levels[c];
+                    double step = renderer.delta * s;
+                    double x0 = col * cellSize, x1 = Math.min(renderer.width, x0 + cellSize);
+
+                    // the same kind of jittered grid as the plain one, just with a bigger spacing
+                    SplittableRandom r = new SplittableRandom(2137L + (long) pass * levels.length + c);
+                    for (double x = x0 + r.nextDouble() * step; x < x1; x += step) {
+                        w.column(x, y0 + r.nextDouble() * step, y1, step, s*s);
+                    }
+                }
+            } finally {
+                renderer.release();
+            }
+            renderer.progress();
+        }
+    }
+}
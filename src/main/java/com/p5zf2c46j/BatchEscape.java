@@ -0,0 +1,34 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.formula.Formula;
+
+/**
+ * The first pass of TWICE recording for a whole column at once, so it doesn't have to go one sample at a time like
+ * OrbitEngine.escape. The only one there is is the jdk.incubator.vector kernel in com.p5zf2c46j.vector, which only
+ * gets built on Java 17 and only runs with --add-modules jdk.incubator.vector, so it gets loaded by name and the
+ * renderer keeps using OrbitEngine.escape whenever vector() can't give it one.
+ */
+public interface BatchEscape {
+
+    /**
+     * Does what OrbitEngine.escape does for every one of the first n starting points in as and bs, and leaves what it
+     * would have returned in escapes and what it would have left in steps in steps.
+     */
+    void escape(double[] as, double[] bs, int n, int[] escapes, int[] steps);
+
+    /**
+     * A vector kernel for one thread, the arguments are the same as OrbitEngine's.
+     *
+     * @return null if the kernel isn't there (built or running without jdk.incubator.vector), the cpu has no vector
+     * lanes for doubles, or the kernel doesn't know the formula
+     */
+    static BatchEscape vector(Formula formula, int maxIter, InteriorMask mask, OrbitEngine.Cycles cycles, double epsilon) {
+        try {
+            return (BatchEscape) Class.forName("com.p5zf2c46j.vector.VectorEscape")
+                    .getMethod("create", Formula.class, int.class, InteriorMask.class, OrbitEngine.Cycles.class, double.class)
+                    .invoke(null, formula, maxIter, mask, cycles, epsilon);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
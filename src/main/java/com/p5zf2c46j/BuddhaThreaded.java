@@ -1,231 +1,280 @@
 package com.p5zf2c46j;
 
-import com.p5zf2c46j.util.Complex;
+import com.p5zf2c46j.util.PngWriter;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferUShort;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
-import java.util.concurrent.CountDownLatch;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import static com.p5zf2c46j.util.Complex.*;
 import static com.p5zf2c46j.util.P3Utils.*;
 import static java.time.Instant.now;
 
+/**
+ * Runs a queue of render jobs back to back in one JVM, so they all share the thread pool and the warmed up JIT. The
+ * images of a render get written while the next one is already sampling.
+ *
+ * Arguments are job files (see RenderJob), directories (every .properties file in them, sorted by name) and key=value
+ * pairs that apply to every job. Without any job files it renders one job made from the key=value pairs and system
+ * properties, which with no arguments at all is the same render this always did.
+ */
 public class BuddhaThreaded {
-    public static final int numThreads = 4;
+    // can be changed with -Dthreads=n, shared by every job
+    public static final int numThreads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
 
     public static void main(String[] args) throws Exception {
-        System.out.println(getCurrentTimeStamp() + " : Rendering started");
-        long totalTime = -System.currentTimeMillis();
-
-        for (int i = 4; i <= 13; i++) {
-            long time = -System.currentTimeMillis();
+        List<RenderJob> jobs = jobs(args);
 
-            RendererThread[] threads = new RendererThread[numThreads];
-            CountDownLatch latch = new CountDownLatch(numThreads);
+        System.out.println(getCurrentTimeStamp() + " : Rendering started, " + jobs.size() + " job(s)");
+        long totalTime = -System.currentTimeMillis();
 
-            for (int j = 0; j < numThreads; j++) {
-                threads[j] = new RendererThread(1<<i, j, latch);
-                threads[j].start();
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        Exporter exporter = new Exporter(pool);
+        int failed = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            RenderJob job = jobs.get(i);
+            System.out.println(getCurrentTimeStamp() + " : Job " + (i+1) + "/" + jobs.size() + " " + job.name);
+            try {
+                run(job, pool, exporter);
+            } catch (Exception e) {
+                // one bad job shouldn't take the rest of the queue down with it
+                failed++;
+                System.out.println("\n" + getCurrentTimeStamp() + " : Job " + job.name + " failed: " + e);
+                e.printStackTrace();
             }
+        }
+        failed += exporter.finish();
 
-            latch.await();
-
-            time += System.currentTimeMillis();
-            System.out.println("\n"+getCurrentTimeStamp()+" : Completed "+threads[0].name+" in "+formatMillis(time));
+        pool.shutdown();
 
-            BufferedImage cvs = new BufferedImage(RendererThread.width, RendererThread.height, BufferedImage.TYPE_USHORT_GRAY);
-            short[] pixels = ((DataBufferUShort)cvs.getRaster().getDataBuffer()).getData();
-            int[] vals = new int[pixels.length];
+        totalTime += System.currentTimeMillis();
+        System.out.println(getCurrentTimeStamp() + " : Rendering took " + formatMillis(totalTime)
+                + (failed > 0 ? ", " + failed + " job(s) failed" : ""));
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
 
-            for (RendererThread thread : threads) {
-                for (int j = 0; j < thread.vals.length; j++) {
-                    vals[j] += thread.vals[j];
-                }
+    /**
+     * Reads every job the arguments describe, before rendering anything so a typo in the last one doesn't show up hours
+     * later.
+     */
+    static List<RenderJob> jobs(String[] args) throws IOException {
+        Map<String, String> overrides = new LinkedHashMap<>();
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                overrides.put(arg.substring(0, eq), arg.substring(eq+1));
+            } else if (new File(arg).isDirectory()) {
+                File[] inDir = new File(arg).listFiles((dir, name) -> name.endsWith(".properties"));
+                Arrays.sort(inDir);
+                files.addAll(Arrays.asList(inDir));
+            } else {
+                files.add(new File(arg));
             }
+        }
 
-            double bot = min(vals);
-            double top = max(vals)+1;
+        List<RenderJob> jobs = new ArrayList<>();
+        if (files.isEmpty()) {
+            jobs.add(RenderJob.of(overrides));
+        }
+        for (File file : files) {
+            jobs.add(RenderJob.load(file, overrides));
+        }
+        return jobs;
+    }
 
-            for (int j = 0; j < pixels.length; j++) {
-                double m = map(vals[j], bot, top, 0, 1);
-                pixels[j] = (short) (Math.pow(m, 0.5) * 65536);
-            }
+    /**
+     * Renders every image of the given job.
+     */
+    public static void run(RenderJob job, ForkJoinPool pool) throws Exception {
+        run(job, pool, null);
+    }
 
-            String fileName = "/data/out/mceltic/" + (1<<i) + "_" + now().getEpochSecond() + ".png";
-            File outFile = new File(Paths.get("").toAbsolutePath() + fileName);
-            ImageIO.write(cvs, "png", outFile);
+    /**
+     * Renders every image of the given job, the images get written by the exporter if there is one.
+     */
+    private static void run(RenderJob job, ForkJoinPool pool, Exporter exporter) throws Exception {
+        InteriorMask mask = job.useMask ? InteriorMask.get(job.formula, pool) : null;
+        if (job.tileRows > 0 && job.tileRows < job.height) {
+            Tiled.run(job, pool, mask);
+            return;
         }
 
-        totalTime += System.currentTimeMillis();
-        System.out.println(getCurrentTimeStamp() + " : Rendering took " + formatMillis(totalTime));
-    }
+        for (int[] maxIters : groups(job)) {
+            long time = -System.currentTimeMillis();
+            Renderer renderer = renderer(job, maxIters, pool, mask, "");
+            int[][] buckets = renderer.render(job.passes);
 
-    private static int max(int[] array) {
-        int m = array[0];
-        for (int a : array) {
-            m = Math.max(a, m);
+            time += System.currentTimeMillis();
+            String name = "Renderer ["+maxIters[maxIters.length-1]+", "+job.passes+" passes, "+numThreads+" threads]";
+            System.out.println("\n"+getCurrentTimeStamp()+" : Completed "+name+" in "+formatMillis(time));
+            System.out.println(getCurrentTimeStamp()+" : "+renderer.stats().summary());
+
+            if (exporter != null) {
+                exporter.submit(job, maxIters, buckets);
+            } else {
+                export(job, maxIters, buckets, pool);
+            }
         }
-        return m;
     }
 
-    private static int min(int[] array) {
-        int m = array[0];
-        for (int a : array) {
-            m = Math.min(a, m);
+    /**
+     * @return the maxIters of every render the job needs, one render for all of them in single pass mode (where the
+     * nebula maxIters just become more buckets) or one per level
+     */
+    static List<int[]> groups(RenderJob job) {
+        List<int[]> groups = new ArrayList<>();
+        if (job.singlePass) {
+            groups.add(job.maxIters());
+        } else {
+            for (int maxIter : job.levels) {
+                groups.add(new int[] {maxIter});
+            }
         }
-        return m;
+        return groups;
     }
-}
 
-class RendererThread implements Runnable {
-    // 8:5 - 2732 x 1708
-    // 2:1 - 3040 x 1520
-
-    // Static vars
-    public static final int width = 2160;
-    public static final int height = 2160;
-    private static final double xcenter = -0.125;
-    private static final double ycenter = 0;
-    private static final double magn = 1;
-
-    // Thread stuff
-    public Thread thread = null;
-    public final String name;
-
-    // Inputs
-    private final CountDownLatch latch;
-    private final int maxIter;
-    public final int index;
-
-    // Outputs
-    public final int[] vals;
-
-    @Override
-    public void run() {
-        double xmin, xmax, ymin, ymax;
-        {
-            double xreach = 2.0/magn;
-            double yreach = (2.0*height)/(magn*width);
-            xmin = xcenter - xreach;
-            xmax = xcenter + xreach;
-            ymin = ycenter - yreach;
-            ymax = ycenter + yreach;
-        }
-        int prev = -1;
-
-        // this value determines how noisy the final image is (lower = slower but less noise)
-        final double delta = 0.05;
-        // the random is here because when I started x and y at 0 there was a bunch of weird lines in the end result
-        Random r = new Random(index + 2137);
-        for (double x = -r.nextDouble() * delta; x < width; x += delta) {
-            for (double y = -r.nextDouble() * delta; y < height; y += delta) {
-                // so to make the buddhabrot we need to store all the indexes we're supposed to add to
-                // but only add to them once we know the value of z tends to infinity
-                ArrayList<Integer> nums = new ArrayList<>();
-
-                // we make an array of a few previous values
-                // comparing z to it later speeds up a few fractals
-                Complex[] p = new Complex[3];
-                Arrays.setAll(p, i -> new Complex(Double.NaN, Double.NaN));
-
-                Complex pixel;
-                {
-                    double a = map(x, 0, width, xmin, xmax);
-                    double b = map(y, 0, height, ymax, ymin);
-                    pixel = new Complex(a, b);
-                }
-
-                Complex z = new Complex();
-                Complex n = new Complex();
-
-                iter:
-                for (int k = 0; k < maxIter; k++) {
-
-                    // this is the main formula
-                    n.set(sqr(z));
-                    n.x = Math.abs(n.x);
-                    n.add(pixel);
-
-                    // checking if z tends to infinity would be too slow so we just check if its distance from the origin is
-                    // greater than some arbitrary value (might have to change this when using different fractals)
-                    if (magSqr(n) > 256) {
-                        break;
-                    }
-
-                    // if z is close enough to one of the values in p we have reached a fixed point or a period with the max
-                    // length of p.length which means z will never escape the bail condition which we mark by adding -1 to nums
-                    for (Complex o : p) {
-                        if (magSqr(sub(n, o)) < 1E-30) {
-                            nums.add(-1);
-                            break iter;
-                        }
-                    }
-
-                    z.set(n);
-                    p[k % p.length].set(n);
-
-                    // if the pixel is off screen we can mark it as such and continue
-                    if (z.x < xmin || z.x >= xmax || z.y < ymin || z.y >= ymax) {
-                        nums.add(-2);
-                        continue;
-                    }
-
-                    int indX = (int) Math.floor(map(z.x, xmin, xmax, 0, width));
-                    int indY = (int) Math.floor(map(z.y, ymax, ymin, 0, height));
-                    nums.add(indX + width * indY);
-                }
+    /**
+     * A renderer for the given maxIters of the job with checkpoints and previews set up, tag gets added to the
+     * checkpoint name to tell renders of the same job apart.
+     */
+    static Renderer renderer(RenderJob job, int[] maxIters, ForkJoinPool pool, InteriorMask mask, String tag) throws IOException {
+        return renderer(job, maxIters, pool, mask, tag, 0, job.height);
+    }
 
-                // if the number of indexes equals the max iterations we know the value of z never escaped the bail condition
-                if (nums.size() == maxIter) {
-                    continue;
-                }
+    /**
+     * Same as above for a renderer that only records image rows [rowFrom, rowTo).
+     */
+    static Renderer renderer(RenderJob job, int[] maxIters, ForkJoinPool pool, InteriorMask mask, String tag, int rowFrom, int rowTo) throws IOException {
+        Renderer renderer = new Renderer(job, maxIters, pool, mask, rowFrom, rowTo);
+        if (job.checkpoint != null) {
+            String fileName = "/data/checkpoints/" + job.checkpoint + tag + "_" + maxIters[maxIters.length-1] + ".ckpt";
+            renderer.checkpoint(new File(Paths.get("").toAbsolutePath() + fileName), job.checkpointInterval);
+        }
+        if (job.previewInterval > 0 || job.previewPercent > 0) {
+            File file = new File(job.out, "preview" + tag + "_" + maxIters[maxIters.length-1] + ".png");
+            renderer.preview(file, job.previewInterval, job.previewPercent / 100, job.previewScale);
+        }
+        return renderer;
+    }
 
-                // making sure we dont get an ArrayIndexOutOfBoundsException
-                if (nums.size() > 0) {
-                    // if we found a period we also know the value of z will never escape the bail condition
-                    if (nums.get(nums.size()-1) == -1) {
-                        continue;
-                    }
-                }
+    /**
+     * Writes the image of every level (and the nebulabrot) that's in the given buckets, and the buckets themselves if
+     * the job wants them.
+     */
+    static void export(RenderJob job, int[] maxIters, int[][] buckets, ForkJoinPool pool) throws IOException {
+        export(job, new Histograms.Info(job, maxIters), buckets, pool);
+    }
 
-                // we increment the sample count of the pixel at each of the indexes in vals
-                for (int num : nums) {
-                    // except for the ones previously marked as off screen
-                    if (num != -2) {
-                        vals[num]++;
-                    }
-                }
+    /**
+     * Same as above for buckets that aren't exactly what the job asked for, like a cached render with more passes.
+     */
+    static void export(RenderJob job, Histograms.Info info, int[][] buckets, ForkJoinPool pool) throws IOException {
+        int[] maxIters = info.maxIters;
+        if (job.raw) {
+            File file = new File(job.out, "raw_" + maxIters[maxIters.length-1] + "_" + now().getEpochSecond() + ".bdh");
+            Histograms.write(file, info, buckets);
+        }
 
+        // bucket i only holds the orbits that escaped between maxIters[i-1] and maxIters[i],
+        // so the image for maxIters[i] is the sum of buckets 0 to i
+        job.out.mkdirs();
+        int[] vals = new int[job.width * job.height];
+        int[][] channels = new int[3][];
+        for (int i = 0; i < maxIters.length; i++) {
+            int[] bucket = buckets[i];
+            for (int j = 0; j < bucket.length; j++) {
+                vals[j] += bucket[j];
             }
 
-            int cur = (int) map(x, 0, width, 0, 56);
-            if (cur != prev) {
-                prev = cur;
-                System.out.print("#");
+            if (Arrays.binarySearch(job.levels, maxIters[i]) >= 0) {
+                writeImage(job, vals, maxIters[i], pool);
+            }
+            for (int c = 0; job.nebula != null && c < 3; c++) {
+                if (job.nebula[c] == maxIters[i]) {
+                    channels[c] = vals.clone();
+                }
             }
         }
 
-        latch.countDown();
+        if (channels[0] != null && channels[1] != null && channels[2] != null) {
+            BufferedImage cvs = ToneMap.toRgb(channels[0], channels[1], channels[2], job.width, job.height, pool);
+            String fileName = "nebula_" + job.nebula[0] + "-" + job.nebula[1] + "-" + job.nebula[2]
+                    + "_" + now().getEpochSecond() + ".png";
+            PngWriter.write(cvs, new File(job.out, fileName), job.pngLevel, pool);
+        }
     }
 
-    public RendererThread(int maxIter, int index, CountDownLatch latch) {
-        this.maxIter = maxIter;
-        this.index = index;
-        this.latch = latch;
-        this.vals = new int[width*height];
-        this.name = "Renderer ["+maxIter+", "+index+"]";
+    private static void writeImage(RenderJob job, int[] vals, int maxIter, ForkJoinPool pool) throws IOException {
+        BufferedImage cvs = ToneMap.toGray(vals, job.width, job.height, ToneMap.sqrt, -1, pool);
+
+        File outFile = new File(job.out, maxIter + "_" + now().getEpochSecond() + ".png");
+        PngWriter.write(cvs, outFile, job.pngLevel, pool);
     }
 
-    public void start() {
-        if (thread == null) {
-            thread = new Thread(this, name);
-            thread.start();
+    /**
+     * Exports renders on a thread of its own. Only one export runs at a time and submitting the next one waits for it,
+     * so we never hold on to more than one extra set of buckets.
+     */
+    private static class Exporter {
+        private final ForkJoinPool pool;
+        private final ExecutorService thread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Exporter");
+            t.setDaemon(true);
+            return t;
+        });
+        private Future<?> pending;
+        private String pendingName;
+        private int failed;
+
+        Exporter(ForkJoinPool pool) {
+            this.pool = pool;
+        }
+
+        void submit(RenderJob job, int[] maxIters, int[][] buckets) throws InterruptedException {
+            waitForPending();
+            pendingName = job.name;
+            pending = thread.submit(() -> {
+                export(job, maxIters, buckets, pool);
+                return null;
+            });
+        }
+
+        /**
+         * Waits for the last export and stops the thread.
+         *
+         * @return how many exports failed
+         */
+        int finish() throws InterruptedException {
+            waitForPending();
+            thread.shutdown();
+            return failed;
+        }
+
+        private void waitForPending() throws InterruptedException {
+            if (pending == null) {
+                return;
+            }
+            try {
+                pending.get();
+            } catch (ExecutionException e) {
+                failed++;
+                System.out.println("\n" + getCurrentTimeStamp() + " : Writing the images of " + pendingName + " failed: " + e.getCause());
+                e.getCause().printStackTrace();
+            }
+            pending = null;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,237 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.accum.Accumulator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+/**
+ * A memory mapped file holding the histograms of all the finished work units of a render plus which units those are.
+ * Every unit gets its samples (and random seeds) from its index alone, so the set of finished units is all we need to
+ * know to pick up where we left off.
+ *
+ * There are two copies of the header and two histogram slots, header i belongs to slot i. A save writes the slot that
+ * isn't current, then the matching header with a higher sequence number and a checksum. On load we take the valid
+ * header with the highest sequence number, so if we crash in the middle of a save we just end up at the previous one
+ * and the file never contains half of a unit.
+ *
+ * Layout: two header pages (magic, version, crc, sequence, unit count, buckets, pixels, key, done bitmap) followed by
+ * the two slots, each one histogram of ints per bucket.
+ */
+public class Checkpoint implements Closeable {
+    private static final int magic = 0x42444852; // BDHR
+    private static final int version = 1;
+    // headers take up whole pages so the slots stay page aligned
+    private static final int page = 4096;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] headers;
+    private final MappedByteBuffer[][] maps;
+    private final IntBuffer[][] slots;
+    private final byte[] key;
+    private final int units, buckets, size;
+    private final int bitmapOffset;
+    private final BitSet done;
+    private int current;
+    private long seq;
+
+    private Checkpoint(File path, String key, int units, int buckets, int size) throws IOException {
+        if (4L * size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("a checkpoint can't map a histogram of " + size
+                    + " pixels (over 2 GB), render it in bands with tile.rows");
+        }
+        this.key = key.getBytes(StandardCharsets.UTF_8);
+        this.units = units;
+        this.buckets = buckets;
+        this.size = size;
+        this.done = new BitSet(units);
+
+        bitmapOffset = 36 + this.key.length;
+        int headerSize = (bitmapOffset + (units + 7) / 8 + page - 1) / page * page;
+        long slotSize = 4L * size * buckets;
+        long length = 2L*headerSize + 2*slotSize;
+
+        boolean exists = path.exists();
+        path.getAbsoluteFile().getParentFile().mkdirs();
+        file = new RandomAccessFile(path, "rw");
+        if (exists && file.length() != length) {
+            file.close();
+            throw new IllegalStateException(path + " belongs to a different render, delete it to start over");
+        }
+        file.setLength(length);
+
+        FileChannel channel = file.getChannel();
+        headers = new MappedByteBuffer[2];
+        maps = new MappedByteBuffer[2][buckets];
+        slots = new IntBuffer[2][buckets];
+        for (int s = 0; s < 2; s++) {
+            headers[s] = channel.map(FileChannel.MapMode.READ_WRITE, (long) s*headerSize, headerSize);
+            for (int b = 0; b < buckets; b++) {
+                long offset = 2L*headerSize + s*slotSize + 4L*size*b;
+                maps[s][b] = channel.map(FileChannel.MapMode.READ_WRITE, offset, 4L*size);
+                slots[s][b] = maps[s][b].duplicate().order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        }
+
+        if (!exists) {
+            // slot 0 starts out empty, writing its header makes it the current one
+            current = 0;
+            writeHeader(0);
+            return;
+        }
+
+        current = -1;
+        for (int s = 0; s < 2; s++) {
+            if (valid(headers[s]) && (current < 0 || headers[s].getLong(12) > seq)) {
+                current = s;
+                seq = headers[s].getLong(12);
+            }
+        }
+        if (current < 0) {
+            close();
+            throw new IllegalStateException(path + " belongs to a different render, delete it to start over");
+        }
+        for (int i = 0; i < units; i++) {
+            if ((headers[current].get(bitmapOffset + i/8) & (1 << (i%8))) != 0) {
+                done.set(i);
+            }
+        }
+    }
+
+    private boolean valid(MappedByteBuffer h) {
+        if (h.getInt(0) != magic || h.getInt(4) != version || h.getInt(8) != crc(h)) {
+            return false;
+        }
+        if (h.getInt(20) != units || h.getInt(24) != buckets || h.getInt(28) != size || h.getInt(32) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (h.get(36 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeHeader(int s) {
+        MappedByteBuffer h = headers[s];
+        h.putInt(0, magic);
+        h.putInt(4, version);
+        h.putLong(12, seq);
+        h.putInt(20, units);
+        h.putInt(24, buckets);
+        h.putInt(28, size);
+        h.putInt(32, key.length);
+        for (int i = 0; i < key.length; i++) {
+            h.put(36 + i, key[i]);
+        }
+        for (int i = 0; i < (units + 7) / 8; i++) {
+            h.put(bitmapOffset + i, (byte) 0);
+        }
+        for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i+1)) {
+            int j = bitmapOffset + i/8;
+            h.put(j, (byte) (h.get(j) | (1 << (i%8))));
+        }
+        h.putInt(8, crc(h));
+        h.force();
+    }
+
+    private static int crc(MappedByteBuffer h) {
+        CRC32 crc = new CRC32();
+        for (int i = 12; i < h.capacity(); i++) {
+            crc.update(h.get(i));
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Opens the checkpoint at path, or creates an empty one if there is none.
+     *
+     * @param key describes the render, resuming a checkpoint with a different key fails
+     */
+    public static Checkpoint open(File path, String key, int units, int buckets, int size) throws IOException {
+        return new Checkpoint(path, key, units, buckets, size);
+    }
+
+    public boolean isDone(int unit) {
+        return done.get(unit);
+    }
+
+    public int doneCount() {
+        return done.cardinality();
+    }
+
+    /**
+     * Adds everything in the accumulator to the saved histograms and marks the given units as done. Nothing can be
+     * added to the accumulator while this runs.
+     */
+    public void save(Accumulator accumulator, Iterable<Integer> finished, ForkJoinPool pool) {
+        int next = 1 - current;
+        for (int b = 0; b < buckets; b++) {
+            IntBuffer src = slots[current][b].duplicate();
+            IntBuffer dst = slots[next][b].duplicate();
+            src.rewind();
+            dst.rewind();
+            dst.put(src);
+            accumulator.drain(b, slots[next][b], pool);
+            maps[next][b].force();
+        }
+
+        for (int unit : finished) {
+            done.set(unit);
+        }
+        seq++;
+        writeHeader(next);
+        current = next;
+    }
+
+    /**
+     * Adds the saved histogram of the given bucket to target.
+     */
+    public void snapshot(int bucket, int[] target) {
+        IntBuffer src = slots[current][bucket];
+        for (int j = 0; j < target.length; j++) {
+            target[j] += src.get(j);
+        }
+    }
+
+    /**
+     * @return a copy of the saved histograms
+     */
+    public int[][] read() {
+        IntBuffer[] slot = slots[current];
+        int[][] out = new int[slot.length][];
+        for (int b = 0; b < slot.length; b++) {
+            IntBuffer src = slot[b].duplicate();
+            src.rewind();
+            out[b] = new int[src.remaining()];
+            src.get(out[b]);
+        }
+        return out;
+    }
+
+    /**
+     * Closes the file and drops the mappings, which go away once they get collected (there's no portable way to unmap
+     * them right away before Java 9).
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+        Arrays.fill(headers, null);
+        for (int s = 0; s < 2; s++) {
+            Arrays.fill(maps[s], null);
+            Arrays.fill(slots[s], null);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.p5zf2c46j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.p5zf2c46j.util.P3Utils.*;
+
+/**
+ * Splits renders over several processes that share a directory. Every process renders one shard of the work units
+ * (see Renderer.shard) and writes its buckets to a part file, the coordinator adds the parts up and writes the images
+ * like a normal render would, so the result is the same as rendering everything in one process.
+ *
+ * <pre>
+ * Distributed coordinate dir workers [job args]   renders the jobs (same arguments as BuddhaThreaded) with that many
+ *                                                 local worker processes
+ * Distributed worker jobDir index count           renders one shard of the job in jobDir
+ * </pre>
+ *
+ * With -Dlaunch=false the coordinator doesn't start any processes, it writes the job and waits for the parts to show
+ * up, so the workers can be started by hand on any machine that sees the same directory.
+ */
+public class Distributed {
+    // threads per local worker, the default splits the cores between them
+    private static final int workerThreads = Integer.getInteger("worker.threads", 0);
+    private static final boolean launch = Boolean.parseBoolean(System.getProperty("launch", "true"));
+    // how often we look for parts when the workers aren't ours
+    private static final long pollMillis = 5000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && args[0].equals("coordinate")) {
+            coordinate(new File(args[1]), Integer.parseInt(args[2]), Arrays.copyOfRange(args, 3, args.length));
+        } else if (args.length == 4 && args[0].equals("worker")) {
+            work(new File(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        } else {
+            System.out.println("usage: Distributed coordinate dir workers [job args]");
+            System.out.println("       Distributed worker jobDir index count");
+            System.exit(2);
+        }
+    }
+
+    private static void coordinate(File dir, int workers, String[] jobArgs) throws Exception {
+        List<RenderJob> jobs = BuddhaThreaded.jobs(jobArgs);
+        System.out.println(getCurrentTimeStamp() + " : Rendering " + jobs.size() + " job(s) with " + workers + " workers");
+        long totalTime = -System.currentTimeMillis();
+
+        for (int i = 0; i < jobs.size(); i++) {
+            RenderJob job = jobs.get(i);
+            File jobDir = new File(dir, (i+1) + "_" + job.name).getAbsoluteFile();
+            jobDir.mkdirs();
+            job.save(new File(jobDir, "job.properties"));
+
+            long time = -System.currentTimeMillis();
+            if (launch) {
+                launch(jobDir, workers);
+            }
+
+            for (int[] maxIters : BuddhaThreaded.groups(job)) {
+                int[][] buckets = new int[maxIters.length][job.width * job.height];
+                for (int w = 0; w < workers; w++) {
+                    File part = part(jobDir, maxIters, w, workers);
+                    while (!part.exists()) {
+                        Thread.sleep(pollMillis);
+                    }
+                    Histograms.add(part, buckets);
+                }
+                BuddhaThreaded.export(job, maxIters, buckets, ForkJoinPool.commonPool());
+            }
+
+            time += System.currentTimeMillis();
+            System.out.println(getCurrentTimeStamp() + " : Completed job " + job.name + " in " + formatMillis(time));
+        }
+
+        totalTime += System.currentTimeMillis();
+        System.out.println(getCurrentTimeStamp() + " : Rendering took " + formatMillis(totalTime));
+    }
+
+    /**
+     * Starts the workers of one job as local processes and waits for all of them, their output goes to worker_i.log in
+     * the job directory.
+     */
+    private static void launch(File jobDir, int workers) throws IOException, InterruptedException {
+        int threads = workerThreads > 0 ? workerThreads : Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        List<Process> processes = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            List<String> command = new ArrayList<>();
+            Collections.addAll(command, java, "-Dthreads=" + threads, "-cp", System.getProperty("java.class.path"),
+                    Distributed.class.getName(), "worker", jobDir.getPath(), String.valueOf(w), String.valueOf(workers));
+            File log = new File(jobDir, "worker_" + w + ".log");
+            processes.add(new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start());
+        }
+
+        IOException failed = null;
+        for (int w = 0; w < workers; w++) {
+            int exit = processes.get(w).waitFor();
+            if (exit != 0 && failed == null) {
+                failed = new IOException("worker " + w + " exited with " + exit + ", see " + new File(jobDir, "worker_" + w + ".log"));
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    private static void work(File jobDir, int index, int count) throws Exception {
+        RenderJob job = RenderJob.load(new File(jobDir, "job.properties"), Collections.emptyMap());
+        ForkJoinPool pool = new ForkJoinPool(BuddhaThreaded.numThreads);
+        InteriorMask mask = job.useMask ? InteriorMask.get(job.formula, pool) : null;
+
+        for (int[] maxIters : BuddhaThreaded.groups(job)) {
+            File part = part(jobDir, maxIters, index, count);
+            if (part.exists()) {
+                // already done by an earlier run of this worker
+                continue;
+            }
+
+            long time = -System.currentTimeMillis();
+            String tag = "_" + index + "of" + count;
+            Renderer renderer = BuddhaThreaded.renderer(job, maxIters, pool, mask, tag).shard(index, count);
+            int[][] buckets = renderer.render(job.passes);
+            Histograms.write(part, new Histograms.Info(job, maxIters), buckets);
+
+            time += System.currentTimeMillis();
+            System.out.println("\n" + getCurrentTimeStamp() + " : Completed shard " + (index+1) + "/" + count + " of "
+                    + job.name + " [" + maxIters[maxIters.length-1] + "] in " + formatMillis(time));
+            System.out.println(getCurrentTimeStamp() + " : " + renderer.stats().summary());
+        }
+
+        pool.shutdown();
+    }
+
+    private static File part(File jobDir, int[] maxIters, int index, int count) {
+        return new File(jobDir, "part_" + maxIters[maxIters.length-1] + "_" + index + "of" + count + ".bdh");
+    }
+}
@@ -0,0 +1,263 @@
+package com.p5zf2c46j;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes the raw buckets of a render (or a part of one) so they can be tone mapped again or added up later.
+ *
+ * Layout: a header (magic, version, formula, size, viewport, sample spacing, passes, samples, maxIters) followed by
+ * every bucket's counts, each one stored as the zigzag encoded varint of its difference to the pixel before it, all of
+ * it deflated. Neighbouring pixels are close, so most counts end up as a single byte before deflate even starts.
+ */
+public class Histograms {
+    private static final int magic = 0x42444849; // BDHI
+    private static final int version = 2;
+    // bytes handed to the deflater and the channel at a time
+    private static final int chunk = 1<<16;
+
+    /**
+     * What the counts in a histogram file are of.
+     */
+    public static class Info {
+        public final String formula;
+        public final int width, height;
+        public final double xcenter, ycenter, magn;
+        public final double delta;
+        public final int passes;
+        // starting points sampled by the whole render (not just this part of it), counting the ones that never escaped
+        public final long samples;
+        public final int[] maxIters;
+
+        public Info(String formula, int width, int height, double xcenter, double ycenter, double magn, double delta, int passes, long samples, int[] maxIters) {
+            this.formula = formula;
+            this.width = width;
+            this.height = height;
+            this.xcenter = xcenter;
+            this.ycenter = ycenter;
+            this.magn = magn;
+            this.delta = delta;
+            this.passes = passes;
+            this.samples = samples;
+            this.maxIters = maxIters;
+        }
+
+        /**
+         * The info of a render of the given maxIters of the job.
+         */
+        public Info(RenderJob job, int[] maxIters) {
+            this(job.formula.name(), job.width, job.height, job.xcenter, job.ycenter, job.magn, job.delta, job.passes,
+                    (long) job.passes * (long) (job.width/job.delta) * (long) (job.height/job.delta), maxIters);
+        }
+    }
+
+    /**
+     * The buckets of a file along with its info.
+     */
+    public static class Data {
+        public final Info info;
+        public final int[][] buckets;
+
+        Data(Info info, int[][] buckets) {
+            this.info = info;
+            this.buckets = buckets;
+        }
+    }
+
+    /**
+     * Writes the buckets next to file first and then moves them in place, so a reader never sees half a file.
+     */
+    public static void write(File file, Info info, int[][] buckets) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] formula = info.formula.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(72 + formula.length + 4*info.maxIters.length);
+            header.putInt(magic).putInt(version);
+            header.putInt(formula.length).put(formula);
+            header.putInt(info.width).putInt(info.height);
+            header.putDouble(info.xcenter).putDouble(info.ycenter).putDouble(info.magn).putDouble(info.delta);
+            header.putInt(info.passes).putLong(info.samples);
+            header.putInt(info.maxIters.length);
+            for (int maxIter : info.maxIters) {
+                header.putInt(maxIter);
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            byte[] in = new byte[chunk + 5];
+            byte[] out = new byte[chunk];
+            int n = 0;
+            for (int[] bucket : buckets) {
+                int prev = 0;
+                for (int v : bucket) {
+                    int d = v - prev;
+                    prev = v;
+                    // zigzag so small negative differences stay small too
+                    int z = (d << 1) ^ (d >> 31);
+                    while ((z & ~0x7F) != 0) {
+                        in[n++] = (byte) ((z & 0x7F) | 0x80);
+                        z >>>= 7;
+                    }
+                    in[n++] = (byte) z;
+
+                    if (n >= chunk) {
+                        deflate(deflater, in, n, out, channel);
+                        n = 0;
+                    }
+                }
+            }
+            deflate(deflater, in, n, out, channel);
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain(deflater, out, channel);
+            }
+            deflater.end();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deflate(Deflater deflater, byte[] in, int n, byte[] out, FileChannel channel) throws IOException {
+        deflater.setInput(in, 0, n);
+        while (!deflater.needsInput()) {
+            drain(deflater, out, channel);
+        }
+    }
+
+    private static void drain(Deflater deflater, byte[] out, FileChannel channel) throws IOException {
+        int len = deflater.deflate(out);
+        ByteBuffer buf = ByteBuffer.wrap(out, 0, len);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    public static Data read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer raw = ByteBuffer.allocate(chunk);
+            fill(channel, raw);
+            Info info = header(file, raw);
+            int width = info.width, height = info.height;
+            int[] maxIters = info.maxIters;
+
+            Inflater inflater = new Inflater();
+            inflater.setInput(raw.array(), raw.position(), raw.remaining());
+            byte[] out = new byte[chunk];
+            int n = 0, pos = 0;
+
+            int[][] buckets = new int[maxIters.length][width * height];
+            try {
+                for (int[] bucket : buckets) {
+                    int prev = 0;
+                    for (int j = 0; j < bucket.length; j++) {
+                        int z = 0;
+                        for (int shift = 0; ; shift += 7) {
+                            if (pos == n) {
+                                n = inflate(inflater, channel, raw, out);
+                                pos = 0;
+                            }
+                            byte b = out[pos++];
+                            z |= (b & 0x7F) << shift;
+                            if (b >= 0) {
+                                break;
+                            }
+                        }
+                        prev += (z >>> 1) ^ -(z & 1);
+                        bucket[j] = prev;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(file + " is corrupted", e);
+            } finally {
+                inflater.end();
+            }
+            return new Data(info, buckets);
+        }
+    }
+
+    /**
+     * Only reads the info of a file, without any of the counts.
+     */
+    public static Info info(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer raw = ByteBuffer.allocate(chunk);
+            fill(channel, raw);
+            return header(file, raw);
+        }
+    }
+
+    private static Info header(File file, ByteBuffer raw) throws IOException {
+        if (raw.remaining() < 8 || raw.getInt() != magic || raw.getInt() != version) {
+            throw new IOException(file + " isn't a histogram file");
+        }
+        byte[] formula = new byte[raw.getInt()];
+        raw.get(formula);
+        int width = raw.getInt(), height = raw.getInt();
+        double xcenter = raw.getDouble(), ycenter = raw.getDouble(), magn = raw.getDouble(), delta = raw.getDouble();
+        int passes = raw.getInt();
+        long samples = raw.getLong();
+        int[] maxIters = new int[raw.getInt()];
+        for (int i = 0; i < maxIters.length; i++) {
+            maxIters[i] = raw.getInt();
+        }
+        return new Info(new String(formula, StandardCharsets.UTF_8), width, height, xcenter, ycenter, magn, delta,
+                passes, samples, maxIters);
+    }
+
+    private static int inflate(Inflater inflater, FileChannel channel, ByteBuffer raw, byte[] out) throws IOException, DataFormatException {
+        while (true) {
+            int n = inflater.inflate(out);
+            if (n > 0) {
+                return n;
+            }
+            if (inflater.finished() || !inflater.needsInput()) {
+                throw new EOFException("histogram file ended early");
+            }
+            raw.clear();
+            fill(channel, raw);
+            if (!raw.hasRemaining()) {
+                throw new EOFException("histogram file ended early");
+            }
+            inflater.setInput(raw.array(), 0, raw.remaining());
+        }
+    }
+
+    private static void fill(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                break;
+            }
+        }
+        buf.flip();
+    }
+
+    /**
+     * Adds the buckets in file to target, which has to have the same shape.
+     */
+    public static void add(File file, int[][] target) throws IOException {
+        int[][] buckets = read(file).buckets;
+        if (buckets.length != target.length || buckets[0].length != target[0].length) {
+            throw new IOException(file + " has " + buckets.length + " buckets of " + buckets[0].length + " pixels, expected "
+                    + target.length + " of " + target[0].length);
+        }
+        for (int b = 0; b < buckets.length; b++) {
+            for (int j = 0; j < buckets[b].length; j++) {
+                target[b][j] += buckets[b][j];
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.formula.Formula;
+import com.p5zf2c46j.util.Parallel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.p5zf2c46j.util.P3Utils.*;
+
+/**
+ * A low resolution map of the cells of [-2, 2] x [-2, 2] that are inside the set. It is built by iterating the actual
+ * formula on a lattice, so it works for any formula, and gets saved to data/cache so it only has to be built once.
+ *
+ * A cell only counts as inside if every lattice point on and in it stays bounded and so do all 8 of its neighbours,
+ * which keeps the mask away from the boundary where the interesting orbits start. It's still a heuristic though, so
+ * it's off by default.
+ */
+public class InteriorMask {
+    private static final double domain = 2;
+    // cells per side
+    private static final int res = 512;
+    // lattice points per cell side
+    private static final int sub = 2;
+    // iterations a lattice point has to survive to count as bounded
+    private static final int maskIter = 1<<12;
+
+    private static final Map<String, InteriorMask> cache = new HashMap<>();
+
+    private final BitSet cells;
+
+    private InteriorMask(BitSet cells) {
+        this.cells = cells;
+    }
+
+    public boolean contains(double a, double b) {
+        int i = (int) ((a + domain) * (res / (2*domain)));
+        int j = (int) ((b + domain) * (res / (2*domain)));
+        if (i < 0 || i >= res || j < 0 || j >= res) {
+            return false;
+        }
+        return cells.get(i + res*j);
+    }
+
+    /**
+     * Loads the mask for the given formula from memory or disk, or builds it if there is none yet.
+     */
+    public static synchronized InteriorMask get(Formula formula, ForkJoinPool pool) throws IOException {
+        // everything that changes which cells come out inside, the bailout too since a smaller one lets more points
+        // escape before maskIter
+        String key = formula.name() + "_" + formula.bailout() + "_" + res + "x" + sub + "_" + maskIter;
+        InteriorMask mask = cache.get(key);
+        if (mask != null) {
+            return mask;
+        }
+
+        File file = new File(Paths.get("").toAbsolutePath() + "/data/cache/mask_" + key + ".bin");
+        if (file.exists()) {
+            mask = new InteriorMask(read(file));
+        } else {
+            long time = -System.currentTimeMillis();
+            mask = new InteriorMask(build(formula, pool));
+            time += System.currentTimeMillis();
+            System.out.println(getCurrentTimeStamp() + " : Built interior mask " + key + " in " + formatMillis(time));
+            write(file, mask.cells);
+        }
+
+        cache.put(key, mask);
+        return mask;
+    }
+
+    private static BitSet build(Formula formula, ForkJoinPool pool) {
+        final int n = res*sub + 1;
+        final boolean[] bounded = new boolean[n*n];
+
+        Parallel.range(pool, 0, n, 8, (from, to) -> {
+            // an engine with an empty viewport never records anything, we only care about whether it escapes
+            OrbitEngine engine = new OrbitEngine(formula, 0, 0, 0, 0, 0, 0, maskIter);
+            for (int j = from; j < to; j++) {
+                double b = map(j, 0, n-1, -domain, domain);
+                for (int i = 0; i < n; i++) {
+                    double a = map(i, 0, n-1, -domain, domain);
+                    bounded[i + n*j] = engine.iterate(a, b) < 0;
+                }
+            }
+        });
+
+        BitSet inside = new BitSet(res*res);
+        for (int j = 0; j < res; j++) {
+            for (int i = 0; i < res; i++) {
+                boolean all = true;
+                for (int y = j*sub; y <= (j+1)*sub && all; y++) {
+                    for (int x = i*sub; x <= (i+1)*sub && all; x++) {
+                        all = bounded[x + n*y];
+                    }
+                }
+                inside.set(i + res*j, all);
+            }
+        }
+
+        // shrink it by a cell so we don't throw away anything right next to the boundary
+        BitSet cells = new BitSet(res*res);
+        for (int j = 1; j < res-1; j++) {
+            for (int i = 1; i < res-1; i++) {
+                boolean all = true;
+                for (int y = j-1; y <= j+1 && all; y++) {
+                    for (int x = i-1; x <= i+1 && all; x++) {
+                        all = inside.get(x + res*y);
+                    }
+                }
+                cells.set(i + res*j, all);
+            }
+        }
+        return cells;
+    }
+
+    private static BitSet read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return BitSet.valueOf(words);
+        }
+    }
+
+    private static void write(File file, BitSet cells) throws IOException {
+        file.getParentFile().mkdirs();
+        long[] words = cells.toLongArray();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(words.length);
+            for (long w : words) {
+                out.writeLong(w);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.p5zf2c46j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Metropolis-Hastings sampling of the starting points. Instead of spreading samples evenly we walk a bunch of chains
+ * whose points are visited proportionally to how many on screen hits their orbits have, which for zoomed in views means
+ * almost no time wasted on orbits that never show up.
+ *
+ * Starting points come from the viewport, same as the grid's. Because good points get visited more often every orbit
+ * is added with a weight of scale/hits, where scale is the average number of hits of a point picked uniformly from the
+ * viewport. Every chain estimates it from the uniform points it starts with, so the raw counts come out the same as
+ * the grid's for the same number of samples. The weights are rounded randomly so they stay integers without any bias.
+ */
+class MetropolisSampler {
+    // chance of throwing away the current point and picking a new one anywhere
+    private static final double largeStep = 0.2;
+    // mutations each chain makes before it starts adding anything
+    private static final int warmup = 1<<12;
+    // uniform points every chain starts with to estimate its scale
+    private static final int pilot = 1<<14;
+    // how many random points we try before giving up on finding one that's visible
+    private static final int maxTries = 1<<20;
+    // samples per chain
+    private static final long chainLength = 1<<22;
+    // steps between adding a chain's counts to the render's stats
+    private static final int statsEvery = 1<<14;
+
+    private final Renderer renderer;
+    // the smallest and largest small mutation, a pixel and a tenth of the viewport
+    private final double rmin, rmax;
+
+    MetropolisSampler(Renderer renderer) {
+        this.renderer = renderer;
+        this.rmin = (renderer.xmax - renderer.xmin) / renderer.width;
+        this.rmax = (renderer.xmax - renderer.xmin) * 0.1;
+    }
+
+    List<Chain> chains(long samples) {
+        List<Chain> chains = new ArrayList<>();
+        long n = (samples + chainLength - 1) / chainLength;
+        for (long i = 0; i < n; i++) {
+            long steps = Math.min(chainLength, samples - i*chainLength);
+            chains.add(new Chain(i + 2137, steps));
+        }
+        return chains;
+    }
+
+    @SuppressWarnings("serial")
+    class Chain extends RecursiveAction {
+        private final long seed;
+        private final long steps;
+
+        // the current point
+        private double ca, cb;
+        private int hits, level;
+        private int[] orbit;
+        // escape iteration of the last point passed to contribution
+        private int escape;
+        // the number of samples we stayed on the current point for
+        private long stay;
+        private int maxIter;
+        private RenderStats.Tally tally;
+        // average hits of a uniform point, the weight of an orbit with one on screen hit
+        private double scale;
+
+        Chain(long seed, long steps) {
+            this.seed = seed;
+            this.steps = steps;
+        }
+
+        @Override
+        protected void compute() {
+            Renderer.Worker w = renderer.acquire();
+            if (w == null) {
+                return;
+            }
+            try {
+                run(w);
+            } finally {
+                renderer.release();
+            }
+            renderer.progress();
+        }
+
+        private void run(Renderer.Worker w) {
+            OrbitEngine engine = w.engine;
+            maxIter = w.maxIter;
+            tally = w.tally;
+            Random r = new Random(seed);
+            orbit = new int[engine.orbit.length];
+
+            if (start(engine, r)) {
+                for (long i = -warmup; i < steps; i++) {
+                    double na, nb;
+                    if (r.nextDouble() < largeStep) {
+                        na = uniformA(r);
+                        nb = uniformB(r);
+                    } else {
+                        double radius = rmax * Math.exp(-Math.log(rmax/rmin) * r.nextDouble());
+                        double angle = r.nextDouble() * 2 * Math.PI;
+                        na = ca + radius * Math.cos(angle);
+                        nb = cb + radius * Math.sin(angle);
+                    }
+
+                    // both mutations are symmetric, so we accept with a chance of (new hits)/(old hits)
+                    int nh = contribution(engine, na, nb);
+                    if (nh > 0 && (nh >= hits || r.nextDouble()*hits < nh)) {
+                        deposit(r);
+                        take(engine, na, nb, nh);
+                    }
+
+                    if (i >= 0) {
+                        stay++;
+                    }
+                    if ((i & (statsEvery - 1)) == 0) {
+                        renderer.stats.add(tally);
+                    }
+                }
+                deposit(r);
+            }
+            renderer.stats.add(tally);
+        }
+
+        /**
+         * Picks pilot uniform points (more if none of them is visible), starts at the first visible one and sets scale
+         * to the average hits of all of them.
+         */
+        private boolean start(OrbitEngine engine, Random r) {
+            long sum = 0;
+            boolean found = false;
+            int tries = 0;
+            while (tries < maxTries && (tries < pilot || !found)) {
+                double a = uniformA(r);
+                double b = uniformB(r);
+                int h = contribution(engine, a, b);
+                tries++;
+                sum += h;
+                if (h > 0 && !found) {
+                    take(engine, a, b, h);
+                    found = true;
+                }
+            }
+            scale = (double) sum / tries;
+            return found;
+        }
+
+        private double uniformA(Random r) {
+            return renderer.xmin + r.nextDouble() * (renderer.xmax - renderer.xmin);
+        }
+
+        private double uniformB(Random r) {
+            return renderer.ymin + r.nextDouble() * (renderer.ymax - renderer.ymin);
+        }
+
+        /**
+         * @return the number of on screen hits of the orbit of (a, b), 0 if it doesn't escape or isn't in the viewport
+         */
+        private int contribution(OrbitEngine engine, double a, double b) {
+            if (a < renderer.xmin || a > renderer.xmax || b < renderer.ymin || b > renderer.ymax) {
+                return 0;
+            }
+            escape = engine.iterate(a, b);
+            tally.orbit(escape, engine.steps, maxIter);
+            return escape < 0 ? 0 : engine.length;
+        }
+
+        private void take(OrbitEngine engine, double a, double b, int h) {
+            ca = a;
+            cb = b;
+            hits = h;
+            level = renderer.level(escape);
+            System.arraycopy(engine.orbit, 0, orbit, 0, h);
+            stay = 0;
+        }
+
+        private void deposit(Random r) {
+            if (stay == 0) {
+                return;
+            }
+            double w = scale * stay / hits;
+            int weight = (int) (w + r.nextDouble());
+            if (weight > 0) {
+                renderer.accumulator.add(level, orbit, hits, weight);
+                tally.hits += hits;
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.formula.Formula;
+
+import static com.p5zf2c46j.util.P3Utils.map;
+
+/**
+ * Allocation free version of the orbit loop. Every renderer thread owns one of these and reuses its orbit buffer for
+ * every sample, so the hot loop only ever touches doubles and a single int[].
+ */
+public class OrbitEngine {
+
+    /**
+     * How bounded orbits get caught before maxIter.
+     */
+    public enum Cycles {
+        // compares z to its last 3 values, only catches periods up to 3 and only once they're within 1e-15 of each other
+        RING,
+        // Brent's: compares z to a checkpoint that moves to z after 1, 2, 4, 8... iterations, catches any period once
+        // the checkpoint interval is longer than it, within epsilon
+        BRENT
+    }
+
+    private final Formula formula;
+    private final double bailout;
+
+    // Viewport
+    private final double xmin, xmax, ymin, ymax;
+    private final int width, height;
+    private final int maxIter;
+    // only image rows [rowFrom, rowTo) get recorded, with pixel indexes relative to rowFrom
+    private final int rowFrom, rowTo;
+    // starting points inside this get skipped, can be null
+    private final InteriorMask mask;
+    // Brent's cycle check instead of the ring, squared distance to the checkpoint that counts as a cycle
+    private boolean brent;
+    private double epsilon;
+    // every point also gets recorded upside down, as if the conjugate starting point had been iterated too
+    private boolean mirror;
+
+    // Outputs - the on screen pixel indexes of the last orbit, only the first length entries are valid
+    public int[] orbit;
+    public int length;
+    // how many of those are mirror images
+    public int mirrored;
+    // how many times the formula got applied by the last call, escaping or not
+    public int steps;
+
+    public OrbitEngine(Formula formula, double xmin, double xmax, double ymin, double ymax, int width, int height, int maxIter) {
+        this(formula, xmin, xmax, ymin, ymax, width, height, maxIter, null);
+    }
+
+    public OrbitEngine(Formula formula, double xmin, double xmax, double ymin, double ymax, int width, int height, int maxIter, InteriorMask mask) {
+        this(formula, xmin, xmax, ymin, ymax, width, height, maxIter, mask, 0, height);
+    }
+
+    /**
+     * An engine that only records the image rows from rowFrom to rowTo, for rendering a big image one band at a time.
+     */
+    public OrbitEngine(Formula formula, double xmin, double xmax, double ymin, double ymax, int width, int height, int maxIter, InteriorMask mask, int rowFrom, int rowTo) {
+        this.formula = formula;
+        this.bailout = formula.bailout();
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.ymin = ymin;
+        this.ymax = ymax;
+        this.width = width;
+        this.height = height;
+        this.maxIter = maxIter;
+        this.rowFrom = rowFrom;
+        this.rowTo = rowTo;
+        this.mask = mask;
+        this.orbit = new int[maxIter];
+    }
+
+    /**
+     * Switches the cycle check, epsilon is the squared distance that counts as landing on the checkpoint again and
+     * only matters for BRENT.
+     */
+    public OrbitEngine cycles(Cycles cycles, double epsilon) {
+        this.brent = cycles == Cycles.BRENT;
+        this.epsilon = epsilon;
+        return this;
+    }
+
+    /**
+     * Makes iterate record the mirror image of every point along with it, for formulas that are symmetric to the real
+     * axis (see Formula.conjugateSymmetric). Points outside the recorded rows still get their mirror image recorded if
+     * that's inside them, so a band gets all of its hits from the upper half of the samples too.
+     */
+    public OrbitEngine mirror(boolean mirror) {
+        this.mirror = mirror;
+        this.orbit = new int[mirror ? 2*maxIter : maxIter];
+        return this;
+    }
+
+    /**
+     * Iterates the formula for the starting point (a, b) and records every on screen point of the orbit.
+     *
+     * @return the iteration at which the orbit escaped or -1 if it never did (in which case the orbit should be ignored)
+     */
+    public int iterate(double a, double b) {
+        length = 0;
+        mirrored = 0;
+        steps = 0;
+
+        // no need to iterate points we already know are inside
+        if (formula.interior(a, b)) {
+            return -1;
+        }
+        if (mask != null && mask.contains(a, b)) {
+            return -1;
+        }
+
+        double zx = 0, zy = 0;
+
+        // the last 3 values of z, if we land on one of them again we're stuck in a period
+        double p0x = Double.NaN, p0y = Double.NaN;
+        double p1x = Double.NaN, p1y = Double.NaN;
+        double p2x = Double.NaN, p2y = Double.NaN;
+        int slot = 0;
+        // or with BRENT the checkpoint, and the iteration it moves at next
+        double cx = Double.NaN, cy = Double.NaN;
+        int check = 1;
+
+        for (int k = 0; k < maxIter; k++) {
+
+            double nx = formula.nextX(zx, zy, a);
+            double ny = formula.nextY(zx, zy, b);
+
+            if (nx*nx + ny*ny > bailout) {
+                steps = k + 1;
+                return k;
+            }
+
+            double dx, dy;
+            if (brent) {
+                dx = nx - cx; dy = ny - cy;
+                if (dx*dx + dy*dy < epsilon) { steps = k + 1; return -1; }
+                if (k + 1 == check) {
+                    cx = nx;
+                    cy = ny;
+                    check <<= 1;
+                }
+            } else {
+                dx = nx - p0x; dy = ny - p0y;
+                if (dx*dx + dy*dy < 1E-30) { steps = k + 1; return -1; }
+                dx = nx - p1x; dy = ny - p1y;
+                if (dx*dx + dy*dy < 1E-30) { steps = k + 1; return -1; }
+                dx = nx - p2x; dy = ny - p2y;
+                if (dx*dx + dy*dy < 1E-30) { steps = k + 1; return -1; }
+
+                switch (slot) {
+                    case 0: p0x = nx; p0y = ny; slot = 1; break;
+                    case 1: p1x = nx; p1y = ny; slot = 2; break;
+                    default: p2x = nx; p2y = ny; slot = 0; break;
+                }
+            }
+
+            zx = nx;
+            zy = ny;
+
+            if (zx < xmin || zx >= xmax || zy < ymin || zy >= ymax) {
+                continue;
+            }
+
+            int indX = (int) Math.floor(map(zx, xmin, xmax, 0, width));
+            int indY = (int) Math.floor(map(zy, ymax, ymin, 0, height));
+            if (indY >= rowFrom && indY < rowTo) {
+                orbit[length++] = indX + width * (indY - rowFrom);
+            }
+            if (mirror) {
+                int flipped = height - 1 - indY;
+                if (flipped >= rowFrom && flipped < rowTo) {
+                    orbit[length++] = indX + width * (flipped - rowFrom);
+                    mirrored++;
+                }
+            }
+        }
+
+        steps = maxIter;
+        return -1;
+    }
+
+    /**
+     * Same as iterate but without recording anything, so bounded orbits only cost the iterations. Calling iterate
+     * afterwards for the ones that escape gives the exact same orbit.
+     *
+     * @return the iteration at which the orbit escaped or -1 if it never did
+     */
+    public int escape(double a, double b) {
+        length = 0;
+        mirrored = 0;
+        steps = 0;
+
+        if (formula.interior(a, b)) {
+            return -1;
+        }
+        if (mask != null && mask.contains(a, b)) {
+            return -1;
+        }
+
+        double zx = 0, zy = 0;
+
+        double p0x = Double.NaN, p0y = Double.NaN;
+        double p1x = Double.NaN, p1y = Double.NaN;
+        double p2x = Double.NaN, p2y = Double.NaN;
+        int slot = 0;
+        double cx = Double.NaN, cy = Double.NaN;
+        int check = 1;
+
+        for (int k = 0; k < maxIter; k++) {
+
+            double nx = formula.nextX(zx, zy, a);
+            double ny = formula.nextY(zx, zy, b);
+
+            if (nx*nx + ny*ny > bailout) {
+                steps = k + 1;
+                return k;
+            }
+
+            double dx, dy;
+            if (brent) {
+                dx = nx - cx; dy = ny - cy;
+                if (dx*dx + dy*dy < epsilon) { steps = k + 1; return -1; }
+                if (k + 1 == check) {
+                    cx = nx;
+                    cy = ny;
+                    check <<= 1;
+                }
+            } else {
+                dx = nx - p0x; dy = ny - p0y;
+                if (dx*dx + dy*dy < 1E-30) { steps = k + 1; return -1; }
+                dx = nx - p1x; dy = ny - p1y;
+                if (dx*dx + dy*dy < 1E-30) { steps = k + 1; return -1; }
+                dx = nx - p2x; dy = ny - p2y;
+                if (dx*dx + dy*dy < 1E-30) { steps = k + 1; return -1; }
+
+                switch (slot) {
+                    case 0: p0x = nx; p0y = ny; slot = 1; break;
+                    case 1: p1x = nx; p1y = ny; slot = 2; break;
+                    default: p2x = nx; p2y = ny; slot = 0; break;
+                }
+            }
+
+            zx = nx;
+            zy = ny;
+        }
+
+        steps = maxIter;
+        return -1;
+    }
+}
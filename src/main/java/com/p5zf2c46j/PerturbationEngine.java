@@ -0,0 +1,174 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.formula.Formula;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+import static com.p5zf2c46j.util.P3Utils.map;
+
+/**
+ * Deep zoom version of OrbitEngine for the mandelbrot. Past a magnification of about 1e13 doubles can't tell the
+ * starting points of neighbouring pixels apart anymore, so only the orbit Z of the center of the view gets iterated in
+ * high precision and every sample iterates its difference d to it in doubles:
+ *
+ * <pre>
+ * z = Z + d
+ * d' = 2 Z d + d^2 + dc
+ * </pre>
+ *
+ * which costs about the same as the plain loop. Wherever a sample's z gets smaller than its d the differences stop
+ * being precise (the glitches of plain perturbation), so the sample gets rebased onto the start of the reference
+ * (Z = 0, d = z) and keeps going from there. The same happens when the reference runs out, so one reference orbit is
+ * enough for the whole image.
+ *
+ * Orbit points get mapped to pixels from their offset to the center, which the reference keeps precise as well. Points
+ * after a rebase are only as precise as a double, which is fine as long as the orbits that matter follow the reference.
+ *
+ * There's no period check here: bounded orbits run to maxIter.
+ */
+public class PerturbationEngine {
+
+    /**
+     * The high precision orbit of the center of the view, shared by every engine of a render.
+     */
+    public static class Reference {
+        // Z rounded to doubles, and Z minus the center rounded after subtracting
+        final double[] zx, zy, ox, oy;
+        // number of entries, the last one is either Z_maxIter or the first one that escaped
+        final int length;
+        // the center rounded to doubles
+        final double cx, cy;
+
+        /**
+         * Iterates the center with BigDecimals of the given number of significant digits.
+         */
+        public Reference(BigDecimal cx, BigDecimal cy, int maxIter, double bailout, int digits) {
+            MathContext mc = new MathContext(digits);
+            BigDecimal two = BigDecimal.valueOf(2);
+            zx = new double[maxIter + 1];
+            zy = new double[maxIter + 1];
+            ox = new double[maxIter + 1];
+            oy = new double[maxIter + 1];
+            this.cx = cx.doubleValue();
+            this.cy = cy.doubleValue();
+
+            BigDecimal x = BigDecimal.ZERO, y = BigDecimal.ZERO;
+            int n = 0;
+            while (n <= maxIter) {
+                zx[n] = x.doubleValue();
+                zy[n] = y.doubleValue();
+                ox[n] = x.subtract(cx, mc).doubleValue();
+                oy[n] = y.subtract(cy, mc).doubleValue();
+                n++;
+                if (zx[n-1]*zx[n-1] + zy[n-1]*zy[n-1] > bailout) {
+                    break;
+                }
+
+                BigDecimal nx = x.multiply(x, mc).subtract(y.multiply(y, mc), mc).add(cx, mc);
+                y = two.multiply(x, mc).multiply(y, mc).add(cy, mc);
+                x = nx;
+            }
+            length = n;
+        }
+
+        /**
+         * @return enough digits to tell apart points a tenth of the given distance apart, plus some for rounding
+         */
+        public static int digits(double pixel) {
+            return Math.max(20, (int) Math.ceil(-Math.log10(pixel)) + 12);
+        }
+    }
+
+    private final Reference ref;
+    private final Formula formula;
+    private final double bailout;
+
+    // Viewport, as offsets from the center
+    private final double xreach, yreach;
+    private final int width, height;
+    private final int maxIter;
+    // only image rows [rowFrom, rowTo) get recorded, same as in OrbitEngine
+    private final int rowFrom, rowTo;
+
+    // Outputs - same as OrbitEngine's
+    public final int[] orbit;
+    public int length;
+    public int steps;
+    // how many times the last sample got moved back to the start of the reference
+    public int rebases;
+
+    public PerturbationEngine(Reference ref, Formula formula, double xreach, double yreach, int width, int height, int maxIter, int rowFrom, int rowTo) {
+        this.ref = ref;
+        this.formula = formula;
+        this.bailout = formula.bailout();
+        this.xreach = xreach;
+        this.yreach = yreach;
+        this.width = width;
+        this.height = height;
+        this.maxIter = maxIter;
+        this.rowFrom = rowFrom;
+        this.rowTo = rowTo;
+        this.orbit = new int[maxIter];
+    }
+
+    /**
+     * Iterates the starting point center + (da, db) and records every on screen point of its orbit.
+     *
+     * @return the iteration at which the orbit escaped or -1 if it never did
+     */
+    public int iterate(double da, double db) {
+        length = 0;
+        steps = 0;
+        rebases = 0;
+
+        if (formula.interior(ref.cx + da, ref.cy + db)) {
+            return -1;
+        }
+
+        final double[] zx = ref.zx, zy = ref.zy, ox = ref.ox, oy = ref.oy;
+        final int last = ref.length - 1;
+        double dx = 0, dy = 0;
+        int m = 0;
+
+        for (int k = 0; k < maxIter; k++) {
+            double rx = zx[m], ry = zy[m];
+            double nx = 2*(rx*dx - ry*dy) + dx*dx - dy*dy + da;
+            double ny = 2*(rx*dy + ry*dx) + 2*dx*dy + db;
+            m++;
+
+            double x = zx[m] + nx, y = zy[m] + ny;
+            double r2 = x*x + y*y;
+            if (r2 > bailout) {
+                steps = k + 1;
+                return k;
+            }
+
+            if (r2 < nx*nx + ny*ny || m == last) {
+                // z is closer to 0 than to the reference, or the reference ends here
+                dx = x;
+                dy = y;
+                m = 0;
+                rebases++;
+            } else {
+                dx = nx;
+                dy = ny;
+            }
+
+            double px = ox[m] + dx, py = oy[m] + dy;
+            if (px < -xreach || px >= xreach || py < -yreach || py >= yreach) {
+                continue;
+            }
+
+            int indX = (int) Math.floor(map(px, -xreach, xreach, 0, width));
+            int indY = (int) Math.floor(map(py, yreach, -yreach, 0, height));
+            if (indY < rowFrom || indY >= rowTo) {
+                continue;
+            }
+            orbit[length++] = indX + width * (indY - rowFrom);
+        }
+
+        steps = maxIter;
+        return -1;
+    }
+}
@@ -0,0 +1,79 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.util.PngWriter;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.p5zf2c46j.util.P3Utils.*;
+
+/**
+ * Makes new images out of the raw counts a render saved, so trying another tone curve takes seconds instead of a whole
+ * render.
+ *
+ * <pre>
+ * Regrade file.bdh [key=value...]
+ *
+ * curve=sqrt       sqrt, linear, gamma:g, log:k or asinh:k (see ToneMap.curve)
+ * clip=1           the fraction of the non zero pixels that stay below white, 0.999 keeps the brightest 0.1% from
+ *                  squashing everything else
+ * maxIter=all      the maxIter to make an image for, or all of the ones in the file
+ * level=4          png deflate level
+ * out=.            where the images go, named maxIter_curve.png
+ * </pre>
+ */
+public class Regrade {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("usage: Regrade file.bdh [curve=sqrt] [clip=1] [maxIter=all] [level=4] [out=.]");
+            System.exit(2);
+        }
+        Map<String, String> opts = new LinkedHashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected key=value, got " + args[i]);
+            }
+            opts.put(args[i].substring(0, eq), args[i].substring(eq+1));
+        }
+        String curveName = opts.getOrDefault("curve", "sqrt");
+        ToneMap.Curve curve = ToneMap.curve(curveName);
+        double clip = Double.parseDouble(opts.getOrDefault("clip", "1"));
+        String only = opts.getOrDefault("maxIter", "all");
+        int level = Integer.parseInt(opts.getOrDefault("level", "4"));
+        File out = new File(opts.getOrDefault("out", "."));
+        out.mkdirs();
+
+        long time = -System.currentTimeMillis();
+        Histograms.Data data = Histograms.read(new File(args[0]));
+        Histograms.Info info = data.info;
+        System.out.println(getCurrentTimeStamp() + " : Read " + info.formula + " " + info.width + "x" + info.height + ", "
+                + info.samples + " samples, maxIters " + Arrays.toString(info.maxIters));
+
+        // bucket i only holds the orbits that escaped between maxIters[i-1] and maxIters[i]
+        int[] vals = new int[info.width * info.height];
+        int written = 0;
+        for (int i = 0; i < info.maxIters.length; i++) {
+            int[] bucket = data.buckets[i];
+            for (int j = 0; j < bucket.length; j++) {
+                vals[j] += bucket[j];
+            }
+            if (!only.equals("all") && Integer.parseInt(only) != info.maxIters[i]) {
+                continue;
+            }
+
+            int white = clip >= 1 ? ToneMap.max(vals) : ToneMap.clip(vals, clip);
+            String name = info.maxIters[i] + "_" + curveName.replace(':', '-') + (clip < 1 ? "_clip" + clip : "") + ".png";
+            PngWriter.write(ToneMap.toGray(vals, info.width, info.height, curve, white), new File(out, name), level, ForkJoinPool.commonPool());
+            written++;
+        }
+
+        time += System.currentTimeMillis();
+        System.out.println(getCurrentTimeStamp() + " : Wrote " + written + " image(s) to " + out.getAbsolutePath()
+                + " in " + formatMillis(time));
+    }
+}
@@ -0,0 +1,94 @@
+package com.p5zf2c46j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static com.p5zf2c46j.util.P3Utils.getCurrentTimeStamp;
+
+/**
+ * Raw buckets of finished renders on disk, one histogram file per set of render parameters (see Renderer.parameters)
+ * named after their hash. A file holds the most passes anybody asked for so far, a render that wants more only renders
+ * the missing passes and adds them to it.
+ *
+ * Once the files take up more than maxBytes the ones that went unused the longest get deleted, every get and put counts
+ * as a use.
+ */
+class RenderCache {
+    private final File dir;
+    private final long maxBytes;
+
+    RenderCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached buckets of the given parameters, or null if there aren't any
+     */
+    Histograms.Data get(String parameters) throws IOException {
+        File file = file(parameters);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Histograms.Data data = Histograms.read(file);
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            // whatever's in there is no use to anybody, it just gets rendered again
+            System.out.println(getCurrentTimeStamp() + " : Dropping cached render " + file.getName() + ": " + e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Caches the buckets of the given parameters, replacing whatever was cached for them before.
+     */
+    void put(String parameters, Histograms.Info info, int[][] buckets) throws IOException {
+        Histograms.write(file(parameters), info, buckets);
+        evict();
+    }
+
+    private void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".bdh"));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        // oldest first, the file that just got written is the newest so it's the last to go
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length - 1 && total > maxBytes; i++) {
+            total -= files[i].length();
+            files[i].delete();
+            System.out.println(getCurrentTimeStamp() + " : Evicted cached render " + files[i].getName());
+        }
+    }
+
+    private File file(String parameters) {
+        return new File(dir, hash(parameters) + ".bdh");
+    }
+
+    // the first 16 bytes of the SHA-256 of the parameters, in hex
+    private static String hash(String parameters) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(parameters.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has it
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.accum.Accumulator;
+import com.p5zf2c46j.formula.Formula;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.IntStream;
+
+/**
+ * Everything that describes one render. Jobs are read from properties files and key=value arguments. Arguments win
+ * over files, anything neither of them sets comes from the system properties (so -Dformula=name still works) and then
+ * from the defaults below, which are the values that used to be hardcoded.
+ *
+ * <pre>
+ * name=mceltic                 file names of checkpoints, defaults to the job file's name or the formula
+ * formula=mceltic              mandelbrot, mceltic, burningship, tricorn, multibrot3 or multibrot4
+ * bailout=256                  squared escape radius, defaults to the formula's own
+ * width=2160                   image size in pixels
+ * height=2160
+ * xcenter=-0.125               center of the view
+ * ycenter=0
+ * magn=1                       zoom, 1 shows [-2, 2] horizontally
+ * delta=0.05                   distance between samples in pixels, lower = slower but less noise
+ * passes=4                     number of jittered sample grids
+ * levels=16,32,...,8192        every maxIter we make an image for
+ * singlePass=true              iterate every sample once for all levels instead of a pass per level
+ * nebula=8192,1024,128         also write a nebulabrot with these maxIters as red, green and blue, needs singlePass
+ * out=data/out/mceltic         where the images go
+ * png.level=4                  deflate level of the images, 1 is faster and a bit bigger, 9 is slow
+ * raw=false                    also save the raw counts as raw_maxIter_time.bdh, Regrade turns them into new images
+ * tile.rows=0                  render the image this many rows at a time and write it without ever holding all of it,
+ *                              for images too big for memory (see Tiled), 0 = all at once
+ * accumulator=thread           thread, shared, striped or mapped (see Accumulator.Mode). Mapped keeps the histograms in
+ *                              a scratch file while rendering, the finished ones still come back on the heap, so
+ *                              images bigger than memory need tile.rows
+ * sampler=grid                 grid, adaptive (a grid that's sparser where there's little to see), random, halton, sobol,
+ *                              r2 (the same number of samples from a sequence, see Sequence) or metropolis
+ * adaptive.budget=0.5          fraction of the grid's samples the adaptive sampler takes
+ * recording=adaptive           once, twice or adaptive
+ * vector=false                 iterate the first pass of twice several samples at a time with the Java 17 vector api
+ *                              (see BatchEscape), same image. Pays off for mceltic and burningship at high maxIters,
+ *                              not for the multibrots (which it doesn't do). Needs the jar built on Java 17 and
+ *                              java --add-modules jdk.incubator.vector, otherwise it's the plain loop
+ * cycles=ring                  how bounded orbits get caught early: ring (the last 3 values, periods up to 3) or brent
+ *                              (any period, see OrbitEngine.Cycles)
+ * cycles.epsilon=0.00001       how close z has to come back to itself for brent, in pixels
+ * mask=false                   skip starting points inside the precomputed interior mask
+ * symmetry=false               only sample the upper half of views centered on the real axis and mirror every orbit,
+ *                              for formulas that are symmetric (see Formula.conjugateSymmetric). About twice as fast
+ *                              and just as good, but not the same samples as a render without it
+ * perturbation=false           iterate the center in high precision and only the differences to it in doubles, for
+ *                              zooms past magn=1e12 (mandelbrot and the grid sampler only, see PerturbationEngine)
+ * checkpoint=name              save to data/checkpoints/name_maxIter.ckpt and resume from there
+ * checkpoint.interval=300      seconds between checkpoint saves
+ * preview=0                    seconds between previews, 0 = never
+ * preview.percent=0            also write a preview every time another p percent of the work is done
+ * stats=0                      seconds between log lines with the render's rates and hit ratios, 0 = only at the end
+ * </pre>
+ */
+public class RenderJob {
+    private static final String[] keys = {"name", "formula", "bailout", "width", "height", "xcenter", "ycenter", "magn",
+            "delta", "passes", "levels", "singlePass", "nebula", "out", "png.level", "raw", "tile.rows", "accumulator", "sampler", "adaptive.budget", "recording",
+            "vector", "cycles", "cycles.epsilon", "mask", "symmetry", "perturbation", "checkpoint", "checkpoint.interval", "preview", "preview.percent", "stats"};
+
+    public final String name;
+    public final Formula formula;
+
+    // Viewport
+    public final int width, height;
+    public final double xcenter, ycenter, magn;
+    // the center exactly as it was written, which deep zooms need more digits of than a double has
+    public final BigDecimal xcenterExact, ycenterExact;
+
+    // Sampling
+    public final double delta;
+    public final int passes;
+    // has to be sorted
+    public final int[] levels;
+    public final boolean singlePass;
+    // red, green and blue maxIter or null
+    public final int[] nebula;
+    public final File out;
+    public final int pngLevel;
+    public final boolean raw;
+    public final int tileRows;
+
+    // How
+    public final Accumulator.Mode accumulation;
+    public final Renderer.Sampling sampling;
+    public final double adaptiveBudget;
+    public final Renderer.Recording recording;
+    public final boolean vector;
+    public final OrbitEngine.Cycles cycles;
+    public final double cycleEpsilon;
+    public final boolean useMask;
+    public final boolean symmetry;
+    public final boolean perturbation;
+
+    // Checkpoints, previews and stats
+    public final String checkpoint;
+    public final long checkpointInterval;
+    public final long previewInterval;
+    public final double previewPercent;
+    public final int previewScale = 4;
+    public final long statsInterval;
+
+    // every key that was set, so the job can be written out for another process
+    private final Properties spec = new Properties();
+
+    private RenderJob(Properties p, String defaultName) {
+        for (String key : keys) {
+            if (p.getProperty(key) != null) {
+                spec.setProperty(key, p.getProperty(key));
+            }
+        }
+
+        Formula formula = Formula.forName(p.getProperty("formula", "mceltic"));
+        String bailout = p.getProperty("bailout");
+        this.formula = bailout == null ? formula : Formula.withBailout(formula, Double.parseDouble(bailout));
+        this.name = p.getProperty("name", defaultName != null ? defaultName : formula.name());
+
+        width = Integer.parseInt(p.getProperty("width", "2160"));
+        height = Integer.parseInt(p.getProperty("height", "2160"));
+        xcenter = Double.parseDouble(p.getProperty("xcenter", "-0.125"));
+        ycenter = Double.parseDouble(p.getProperty("ycenter", "0"));
+        xcenterExact = new BigDecimal(p.getProperty("xcenter", "-0.125").trim());
+        ycenterExact = new BigDecimal(p.getProperty("ycenter", "0").trim());
+        magn = Double.parseDouble(p.getProperty("magn", "1"));
+
+        delta = Double.parseDouble(p.getProperty("delta", "0.05"));
+        passes = Integer.parseInt(p.getProperty("passes", "4"));
+        levels = ints(p.getProperty("levels", "16,32,64,128,256,512,1024,2048,4096,8192"));
+        for (int i = 1; i < levels.length; i++) {
+            if (levels[i] <= levels[i-1]) {
+                throw new IllegalArgumentException("levels have to be sorted: " + p.getProperty("levels"));
+            }
+        }
+        singlePass = Boolean.parseBoolean(p.getProperty("singlePass", "true"));
+        nebula = p.getProperty("nebula") == null ? null : ints(p.getProperty("nebula"));
+        if (nebula != null && nebula.length != 3) {
+            throw new IllegalArgumentException("nebula needs three maxIters (red, green, blue), got " + p.getProperty("nebula"));
+        }
+        if (nebula != null && !singlePass) {
+            // the channels would come from renders with different samples, so their brightness wouldn't match
+            throw new IllegalArgumentException("nebula needs singlePass=true, a pass per level never has all three channels at once");
+        }
+        out = Paths.get(p.getProperty("out", "data/out/" + formula.name())).toAbsolutePath().toFile();
+        pngLevel = Integer.parseInt(p.getProperty("png.level", "4"));
+        raw = Boolean.parseBoolean(p.getProperty("raw", "false"));
+        tileRows = Integer.parseInt(p.getProperty("tile.rows", "0"));
+        spec.setProperty("name", name);
+        spec.setProperty("out", out.getPath());
+
+        accumulation = Accumulator.Mode.valueOf(p.getProperty("accumulator", "thread").toUpperCase());
+        sampling = Renderer.Sampling.valueOf(p.getProperty("sampler", "grid").toUpperCase());
+        adaptiveBudget = Double.parseDouble(p.getProperty("adaptive.budget", "0.5"));
+        recording = Renderer.Recording.valueOf(p.getProperty("recording", "adaptive").toUpperCase());
+        vector = Boolean.parseBoolean(p.getProperty("vector", "false"));
+        cycles = OrbitEngine.Cycles.valueOf(p.getProperty("cycles", "ring").toUpperCase());
+        cycleEpsilon = Double.parseDouble(p.getProperty("cycles.epsilon", "0.00001"));
+        useMask = Boolean.parseBoolean(p.getProperty("mask", "false"));
+        symmetry = Boolean.parseBoolean(p.getProperty("symmetry", "false"));
+        perturbation = Boolean.parseBoolean(p.getProperty("perturbation", "false"));
+
+        checkpoint = p.getProperty("checkpoint");
+        checkpointInterval = Long.parseLong(p.getProperty("checkpoint.interval", "300")) * 1000;
+        previewInterval = Long.parseLong(p.getProperty("preview", "0")) * 1000;
+        previewPercent = Double.parseDouble(p.getProperty("preview.percent", "0"));
+        statsInterval = Long.parseLong(p.getProperty("stats", "0")) * 1000;
+    }
+
+    /**
+     * A job from key=value pairs, with the system properties filling in the rest.
+     */
+    public static RenderJob of(Map<String, String> values) {
+        Properties p = new Properties();
+        p.putAll(System.getProperties());
+        p.putAll(values);
+        return new RenderJob(p, null);
+    }
+
+    /**
+     * Reads a job file, values override whatever is in it and the system properties fill in the rest.
+     */
+    public static RenderJob load(File file, Map<String, String> values) throws IOException {
+        Properties p = new Properties();
+        p.putAll(System.getProperties());
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        }
+        p.putAll(values);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new RenderJob(p, dot > 0 ? name.substring(0, dot) : name);
+    }
+
+    /**
+     * Writes the job to a file that load turns back into the same job, as long as the system properties don't set
+     * anything the job left at its default.
+     */
+    public void save(File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            spec.store(out, name);
+        }
+    }
+
+    /**
+     * @return every maxIter the renderer needs buckets for, which is the levels plus the nebula channels in single
+     * pass mode
+     */
+    public int[] maxIters() {
+        if (nebula == null) {
+            return levels.clone();
+        }
+        return IntStream.concat(Arrays.stream(levels), Arrays.stream(nebula)).distinct().sorted().toArray();
+    }
+
+    private static int[] ints(String s) {
+        String[] parts = s.split(",");
+        int[] out = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            out[i] = Integer.parseInt(parts[i].trim());
+        }
+        return out;
+    }
+}
@@ -0,0 +1,246 @@
+package com.p5zf2c46j;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.p5zf2c46j.util.P3Utils.*;
+
+/**
+ * Keeps a JVM with a warmed up JIT and one thread pool around and renders whatever jobs get sent to it over HTTP on
+ * localhost, one after another. The raw buckets of every render go into a RenderCache, so sending the same job again
+ * just writes the images again and sending it with more passes only renders the passes that are missing.
+ *
+ * <pre>
+ * POST /jobs       the body is a job file (see RenderJob), queues it and answers with its id
+ * GET  /jobs       every job with its state
+ * GET  /jobs/id    the state of one job and what it did with the cache
+ * </pre>
+ *
+ * The port is -Dport (8137), the cache is data/cache/renders and gets trimmed to -Dcache.mb megabytes (4096).
+ * Tiled jobs (see Tiled) are too big to cache and always render from scratch.
+ */
+public class RenderService {
+    private static final int port = Integer.getInteger("port", 8137);
+    private static final long cacheBytes = Long.getLong("cache.mb", 4096) << 20;
+
+    private final ForkJoinPool pool = new ForkJoinPool(BuddhaThreaded.numThreads);
+    // the jobs run one at a time, every render already keeps all of the pool busy
+    private final ExecutorService queue = Executors.newSingleThreadExecutor(r -> new Thread(r, "Renders"));
+    private final RenderCache cache = new RenderCache(new File(Paths.get("").toAbsolutePath() + "/data/cache/renders"), cacheBytes);
+    private final Map<Integer, Entry> jobs = new LinkedHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+
+    /**
+     * A job that got sent to the service and what happened to it so far.
+     */
+    private static class Entry {
+        final int id;
+        final RenderJob job;
+        volatile String state = "queued";
+        final List<String> log = new ArrayList<>();
+
+        Entry(int id, RenderJob job) {
+            this.id = id;
+            this.job = job;
+        }
+
+        void log(String line) {
+            System.out.println(getCurrentTimeStamp() + " : Job " + id + " " + line);
+            synchronized (log) {
+                log.add(getCurrentTimeStamp() + " : " + line);
+            }
+        }
+
+        String summary() {
+            return id + " " + state + " " + job.name;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        new RenderService().start();
+    }
+
+    private void start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/jobs", this::handle);
+        server.start();
+        System.out.println(getCurrentTimeStamp() + " : Render service listening on http://localhost:" + port + "/jobs, "
+                + BuddhaThreaded.numThreads + " threads");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals("/jobs") || path.equals("/jobs/")) {
+                if (method.equals("POST")) {
+                    String body = new String(readAll(exchange), StandardCharsets.UTF_8);
+                    Entry entry;
+                    try {
+                        entry = submit(body);
+                    } catch (IllegalArgumentException e) {
+                        send(exchange, 400, "bad job: " + e.getMessage());
+                        return;
+                    }
+                    send(exchange, 200, entry.summary());
+                } else if (method.equals("GET")) {
+                    StringBuilder out = new StringBuilder();
+                    synchronized (jobs) {
+                        for (Entry entry : jobs.values()) {
+                            out.append(entry.summary()).append('\n');
+                        }
+                    }
+                    send(exchange, 200, out.toString());
+                } else {
+                    send(exchange, 405, "GET or POST");
+                }
+                return;
+            }
+
+            Entry entry = null;
+            try {
+                int id = Integer.parseInt(path.substring("/jobs/".length()));
+                synchronized (jobs) {
+                    entry = jobs.get(id);
+                }
+            } catch (NumberFormatException e) {
+                // same as a job that doesn't exist
+            }
+            if (entry == null) {
+                send(exchange, 404, "no such job");
+            } else if (!method.equals("GET")) {
+                send(exchange, 405, "GET");
+            } else {
+                StringBuilder out = new StringBuilder(entry.summary()).append('\n');
+                synchronized (entry.log) {
+                    for (String line : entry.log) {
+                        out.append(line).append('\n');
+                    }
+                }
+                send(exchange, 200, out.toString());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads the job and queues it, anything wrong with it shows up here as an IllegalArgumentException rather than
+     * once it's its turn.
+     */
+    private Entry submit(String body) throws IOException {
+        Properties p = new Properties();
+        p.load(new StringReader(body));
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String key : p.stringPropertyNames()) {
+            values.put(key, p.getProperty(key));
+        }
+        int id = ids.incrementAndGet();
+        values.putIfAbsent("name", "job" + id);
+
+        Entry entry = new Entry(id, RenderJob.of(values));
+        synchronized (jobs) {
+            jobs.put(id, entry);
+        }
+        entry.log("queued");
+        queue.execute(() -> run(entry));
+        return entry;
+    }
+
+    private void run(Entry entry) {
+        RenderJob job = entry.job;
+        entry.state = "rendering";
+        long time = -System.currentTimeMillis();
+        try {
+            InteriorMask mask = job.useMask ? InteriorMask.get(job.formula, pool) : null;
+            if (job.tileRows > 0 && job.tileRows < job.height) {
+                Tiled.run(job, pool, mask);
+            } else {
+                for (int[] maxIters : BuddhaThreaded.groups(job)) {
+                    Renderer renderer = BuddhaThreaded.renderer(job, maxIters, pool, mask, "");
+                    Histograms.Data data = buckets(entry, renderer, maxIters);
+                    BuddhaThreaded.export(job, data.info, data.buckets, pool);
+                }
+            }
+            time += System.currentTimeMillis();
+            entry.state = "done";
+            entry.log("done in " + formatMillis(time) + ", images in " + job.out);
+        } catch (Exception e) {
+            entry.state = "failed";
+            entry.log("failed: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The buckets of the given maxIters of the job, from the cache if it has at least as many passes and otherwise
+     * rendered on top of what it has.
+     */
+    private Histograms.Data buckets(Entry entry, Renderer renderer, int[] maxIters) throws IOException {
+        RenderJob job = entry.job;
+        String parameters = renderer.parameters();
+        String max = String.valueOf(maxIters[maxIters.length-1]);
+
+        Histograms.Data cached = cache.get(parameters);
+        if (cached != null && cached.info.passes >= job.passes) {
+            entry.log(max + ": reusing a cached render of " + cached.info.passes + " passes");
+            return cached;
+        }
+
+        // the metropolis chains don't split into passes, so those can only start over
+        int from = cached != null && job.sampling != Renderer.Sampling.METROPOLIS ? cached.info.passes : 0;
+        entry.log(max + ": rendering passes " + from + " to " + job.passes
+                + (from > 0 ? " on top of a cached render" : ""));
+        int[][] buckets = renderer.render(from, job.passes);
+        entry.log(max + ": " + renderer.stats().summary());
+        if (from > 0) {
+            for (int i = 0; i < buckets.length; i++) {
+                int[] bucket = buckets[i], old = cached.buckets[i];
+                for (int j = 0; j < bucket.length; j++) {
+                    bucket[j] += old[j];
+                }
+            }
+        }
+
+        Histograms.Info info = new Histograms.Info(job, maxIters);
+        cache.put(parameters, info, buckets);
+        return new Histograms.Data(info, buckets);
+    }
+
+    private static byte[] readAll(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1<<12];
+        for (int n; (n = exchange.getRequestBody().read(buf)) > 0; ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int code, String text) throws IOException {
+        byte[] bytes = (text.endsWith("\n") ? text : text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.p5zf2c46j;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import static com.p5zf2c46j.util.P3Utils.getCurrentTimeStamp;
+
+/**
+ * Counters of one render. Every worker counts into a Tally of its own and adds it here after every column (or every
+ * so many metropolis steps), so the hot loops never touch anything shared. While the render is running the totals can
+ * be watched over JMX as com.p5zf2c46j:type=RenderStats,name=job_maxIter, every render that runs at the same time gets
+ * a name of its own.
+ */
+public class RenderStats implements RenderStatsMBean {
+    public static final String domain = "com.p5zf2c46j";
+
+    /**
+     * What one thread counted since it last added it to the stats, only ever touched by that thread.
+     */
+    static class Tally {
+        // starting points, the ones skipped because they're known to be inside, escaping and periodic ones
+        long samples, skipped, escaped, periodic;
+        // times the formula got applied, all of them and the ones of escaping orbits
+        long iterations, escapedIterations;
+        // points that went into the histograms
+        long hits;
+        // iterations periodic orbits would have taken on top if they ran to maxIter
+        long saved;
+        // times perturbation moved a sample back to the start of the reference
+        long rebases;
+
+        /**
+         * Counts one starting point, escape and steps being what the engine returned and left in steps for it.
+         */
+        void orbit(int escape, int steps, int maxIter) {
+            samples++;
+            iterations += steps;
+            if (escape >= 0) {
+                escaped++;
+                escapedIterations += steps;
+            } else if (steps == 0) {
+                skipped++;
+            } else if (steps < maxIter) {
+                periodic++;
+                saved += maxIter - steps;
+            }
+        }
+    }
+
+    private final LongAdder samples = new LongAdder(), skipped = new LongAdder(), escaped = new LongAdder(),
+            periodic = new LongAdder(), iterations = new LongAdder(), escapedIterations = new LongAdder(),
+            hits = new LongAdder(), saved = new LongAdder(), rebases = new LongAdder();
+    private final String name;
+    private final DoubleSupplier progress;
+    private volatile long start, end;
+    // what the stats are registered as while the render is running, null when they aren't
+    private ObjectName registered;
+
+    /**
+     * @param name what the stats show up as over JMX, something like job_maxIter
+     */
+    RenderStats(String name, DoubleSupplier progress) {
+        // anything that would need quoting in an ObjectName
+        this.name = name.replaceAll("[,=:\"*?\\\\\\n]", "_");
+        this.progress = progress;
+    }
+
+    /**
+     * Adds the tally to the totals and clears it.
+     */
+    void add(Tally t) {
+        samples.add(t.samples);
+        skipped.add(t.skipped);
+        escaped.add(t.escaped);
+        periodic.add(t.periodic);
+        iterations.add(t.iterations);
+        escapedIterations.add(t.escapedIterations);
+        hits.add(t.hits);
+        saved.add(t.saved);
+        rebases.add(t.rebases);
+        t.samples = t.skipped = t.escaped = t.periodic = t.iterations = t.escapedIterations = t.hits = t.saved = t.rebases = 0;
+    }
+
+    /**
+     * Starts the clock and shows the stats over JMX. If another render that's still running already has the name, this
+     * one gets a number after it.
+     */
+    synchronized void start() {
+        start = System.currentTimeMillis();
+        end = 0;
+        if (registered != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int n = 1; registered == null; n++) {
+            try {
+                ObjectName objectName = new ObjectName(domain + ":type=RenderStats,name=" + name + (n > 1 ? "_" + n : ""));
+                server.registerMBean(this, objectName);
+                registered = objectName;
+            } catch (InstanceAlreadyExistsException e) {
+                // taken, try the next number
+            } catch (JMException e) {
+                System.out.println(getCurrentTimeStamp() + " : Couldn't register the render stats: " + e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the clock, so the rates stay what they were at the end of the render, and takes the stats off JMX.
+     */
+    synchronized void stop() {
+        end = System.currentTimeMillis();
+        if (registered == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException e) {
+            // nobody is watching anymore anyway
+        }
+        registered = null;
+    }
+
+    @Override public long getSamples() { return samples.sum(); }
+    @Override public long getIterations() { return iterations.sum(); }
+    @Override public long getEscaped() { return escaped.sum(); }
+    @Override public long getPeriodic() { return periodic.sum(); }
+    @Override public long getSkipped() { return skipped.sum(); }
+    @Override public long getHits() { return hits.sum(); }
+    @Override public long getIterationsSaved() { return saved.sum(); }
+    @Override public long getRebases() { return rebases.sum(); }
+
+    @Override
+    public double getElapsedSeconds() {
+        if (start == 0) {
+            return 0;
+        }
+        return ((end > 0 ? end : System.currentTimeMillis()) - start) / 1000.0;
+    }
+
+    @Override public double getSamplesPerSecond() { return perSecond(getSamples()); }
+    @Override public double getIterationsPerSecond() { return perSecond(getIterations()); }
+    @Override public double getHitsPerSecond() { return perSecond(getHits()); }
+
+    @Override public double getEscapeRate() { return fraction(getEscaped(), getSamples()); }
+    @Override public double getPeriodicRate() { return fraction(getPeriodic(), getSamples()); }
+
+    /**
+     * @return the fraction of the points of escaping orbits that didn't end up in the image
+     */
+    @Override
+    public double getOffScreenFraction() {
+        return 1 - fraction(getHits(), escapedIterations.sum());
+    }
+
+    @Override
+    public double getProgress() {
+        return progress.getAsDouble();
+    }
+
+    /**
+     * One line with the rates since the last time this got called (or the start) and the rest of the totals so far.
+     *
+     * @param last what the totals were last time, gets updated
+     */
+    String line(long[] last) {
+        long now = System.currentTimeMillis();
+        long s = getSamples(), i = getIterations(), h = getHits();
+        double seconds = Math.max(1, now - last[0]) / 1000.0;
+        String line = String.format("%.1f%% done, %s samples/s, %s it/s, %s hits/s, escaped %.2f%%, periodic %.1f%%, off screen %.1f%%",
+                100 * getProgress(), si((s - last[1]) / seconds), si((i - last[2]) / seconds), si((h - last[3]) / seconds),
+                100 * getEscapeRate(), 100 * getPeriodicRate(), 100 * getOffScreenFraction());
+        last[0] = now;
+        last[1] = s;
+        last[2] = i;
+        last[3] = h;
+        return line;
+    }
+
+    /**
+     * @return what last got passed to line when nothing has been logged yet
+     */
+    long[] lineStart() {
+        return new long[] {start, 0, 0, 0};
+    }
+
+    /**
+     * Everything in one line, for the end of a render.
+     */
+    public String summary() {
+        long s = getSamples();
+        return String.format("%s samples (%.1f%% skipped, %.2f%% escaped, %.1f%% periodic, %.1f%% hit maxIter), %s iterations "
+                        + "(%s saved by the cycle check), %s hits (%.1f%% of the escaping points off screen), %s samples/s, %s it/s, %s hits/s",
+                si(s), 100 * fraction(getSkipped(), s), 100 * getEscapeRate(), 100 * getPeriodicRate(),
+                100 * fraction(s - getSkipped() - getEscaped() - getPeriodic(), s), si(getIterations()), si(getIterationsSaved()), si(getHits()),
+                100 * getOffScreenFraction(), si(getSamplesPerSecond()), si(getIterationsPerSecond()), si(getHitsPerSecond()))
+                // only perturbation rebases
+                + (getRebases() > 0 ? String.format(", %s rebases (%.2f per sample)", si(getRebases()), fraction(getRebases(), getSamples())) : "");
+    }
+
+    private double perSecond(long n) {
+        double seconds = getElapsedSeconds();
+        return seconds > 0 ? n / seconds : 0;
+    }
+
+    private static double fraction(long n, long of) {
+        return of > 0 ? (double) n / of : 0;
+    }
+
+    // 1234567 -> 1.23M
+    private static String si(double v) {
+        String[] units = {"", "k", "M", "G", "T", "P"};
+        int u = 0;
+        while (Math.abs(v) >= 1000 && u < units.length - 1) {
+            v /= 1000;
+            u++;
+        }
+        return String.format(u == 0 ? "%.0f%s" : "%.2f%s", v, units[u]);
+    }
+}
@@ -0,0 +1,26 @@
+package com.p5zf2c46j;
+
+/**
+ * What a running render shows over JMX, see RenderStats.
+ */
+public interface RenderStatsMBean {
+    long getSamples();
+    long getIterations();
+    long getEscaped();
+    long getPeriodic();
+    long getSkipped();
+    long getHits();
+    long getIterationsSaved();
+    // perturbation only
+    long getRebases();
+
+    double getElapsedSeconds();
+    double getSamplesPerSecond();
+    double getIterationsPerSecond();
+    double getHitsPerSecond();
+
+    double getEscapeRate();
+    double getPeriodicRate();
+    double getOffScreenFraction();
+    double getProgress();
+}
@@ -0,0 +1,807 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.accum.Accumulator;
+import com.p5zf2c46j.formula.Formula;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.p5zf2c46j.util.P3Utils.getCurrentTimeStamp;
+import static com.p5zf2c46j.util.P3Utils.map;
+
+/**
+ * Splits the sample grid into strips of columns and runs them on a work stealing pool, so every core stays busy until
+ * the very last strip is done. A pass is one jittered sample grid over the whole viewport (what used to be one
+ * RendererThread), the number of passes only affects the noise and not how many threads are used.
+ */
+public class Renderer {
+    // columns per task, a column is height/delta samples
+    private static final int grain = 4;
+    // columns per work unit, the smallest thing a checkpoint keeps track of
+    private static final int unitColumns = 256;
+
+    public enum Sampling {
+        // jittered grids over the viewport
+        GRID(null),
+        // jittered grids that are sparser where a quick first pass found few on screen hits, see AdaptiveSampler
+        ADAPTIVE(null),
+        // the same number of samples as the grid but taken from a sequence, see Sequence
+        RANDOM(Sequence.RANDOM),
+        HALTON(Sequence.HALTON),
+        SOBOL(Sequence.SOBOL),
+        R2(Sequence.R2),
+        // Metropolis-Hastings chains that stick around the starting points with the most on screen hits
+        METROPOLIS(null);
+
+        final Sequence sequence;
+
+        Sampling(Sequence sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    public enum Recording {
+        // record every orbit while iterating it, and throw it away if it never escapes
+        ONCE,
+        // iterate without recording first and only iterate the ones that escape again to record them
+        TWICE,
+        // picks one of the above for every column, depending on how much of the last column's work was escaping orbits
+        ADAPTIVE
+    }
+
+    // ADAPTIVE iterates twice when escaping orbits made up less than this fraction of the last column's iterations
+    private static final double twiceBelow = 0.25;
+
+    private final RenderJob job;
+    private final Formula formula;
+    final int width, height;
+    final double xmin, xmax, ymin, ymax;
+    // half the size of the viewport, kept on their own since xmax - xmin isn't precise in deep zooms
+    private final double xreach, yreach;
+    // the image rows that get recorded, the samples still cover the whole viewport
+    final int rowFrom, rows;
+    // distance between samples in pixels
+    final double delta;
+    private final int[] maxIters;
+    private final ForkJoinPool pool;
+    // made by every render and closed at its end, so a renderer that never renders holds no memory or scratch file
+    Accumulator accumulator;
+    private final Sampling sampling;
+    private final InteriorMask mask;
+
+    // saved every checkpointInterval millis if not null
+    private File checkpointFile;
+    private long checkpointInterval;
+    // the checkpoint of the render that's running right now
+    private volatile Checkpoint checkpoint;
+
+    // only the units whose index % shards == shard get rendered, the rest is up to other processes
+    private int shard = 0, shards = 1;
+
+    // a small preview of the image gets written to previewFile every previewInterval millis and every previewStep of
+    // the progress bar, the preview is previewScale times smaller than the real thing
+    private File previewFile;
+    private long previewInterval;
+    private double previewStep;
+    private int previewScale;
+    // held while the checkpoint moves things out of the accumulator, so previews don't count them twice
+    private final Object previewLock = new Object();
+
+    // fraction of the grid's samples the adaptive sampler takes
+    private final double adaptiveBudget;
+    // how the grid sampler avoids recording orbits that don't escape
+    private final Recording recording;
+    // the orbit of the center for perturbation, computed by the first render that needs it, null if the samples get
+    // iterated on their own
+    private PerturbationEngine.Reference reference;
+    // only the upper half of the grid gets sampled and every orbit gets added a second time upside down
+    private final boolean mirror;
+    // squared distance the cycle check counts as z coming back to the same value, with job.cycles = BRENT
+    private final double cycleEpsilon;
+    // the first pass of TWICE goes through BatchEscape.vector
+    private final boolean vector;
+
+    // every pool thread lazily gets its own engine. Not a ThreadLocal, the pool threads outlive the render and would
+    // keep the workers (and through them the whole renderer) around, this goes away with the renderer and gets
+    // emptied at the end of every render anyway
+    private final Map<Thread, Worker> workers = new ConcurrentHashMap<>();
+    // tasks that are using a worker right now, and whether a unit of the render failed so the rest should stop. A
+    // ForkJoinTask that gets cancelled while it's running keeps going and only stops being waited for (invokeAll
+    // cancels the sibling of a failed task too), so a failed render counts the tasks down itself before it closes
+    // the accumulator
+    private final AtomicInteger busy = new AtomicInteger();
+    private volatile boolean failed;
+
+    // progress bar
+    private final AtomicInteger done = new AtomicInteger();
+    private volatile int total;
+
+    // counters of the whole render, logged every statsInterval millis (0 = never)
+    final RenderStats stats;
+    private final long statsInterval;
+
+    /**
+     * Renders the viewport and sampling settings of the given job for the given maxIters (which don't have to be the
+     * job's levels).
+     */
+    public Renderer(RenderJob job, int[] maxIters, ForkJoinPool pool, InteriorMask mask) throws IOException {
+        this(job, maxIters, pool, mask, 0, job.height);
+    }
+
+    /**
+     * Renders the whole viewport but only records image rows [rowFrom, rowTo), so the histograms are only that band of
+     * the image. Every orbit lands in exactly one band, so the bands of a render put together are the full render.
+     */
+    public Renderer(RenderJob job, int[] maxIters, ForkJoinPool pool, InteriorMask mask, int rowFrom, int rowTo) throws IOException {
+        if (job.sampling == Sampling.METROPOLIS && (rowFrom > 0 || rowTo < job.height)) {
+            // the chains only see the hits of their own band, so every band would end up with its own brightness
+            throw new IllegalArgumentException("the metropolis sampler can't render a band of the image");
+        }
+        width = job.width;
+        height = job.height;
+        xreach = 2.0/job.magn;
+        yreach = (2.0*height)/(job.magn*width);
+        xmin = job.xcenter - xreach;
+        xmax = job.xcenter + xreach;
+        ymin = job.ycenter - yreach;
+        ymax = job.ycenter + yreach;
+        delta = job.delta;
+        this.rowFrom = rowFrom;
+        this.rows = rowTo - rowFrom;
+
+        this.job = job;
+        this.formula = job.formula;
+        this.maxIters = maxIters;
+        this.pool = pool;
+        this.sampling = job.sampling;
+        this.recording = job.recording;
+        this.statsInterval = job.statsInterval;
+        this.adaptiveBudget = job.adaptiveBudget;
+        this.mask = mask;
+        this.cycleEpsilon = Math.pow(job.cycleEpsilon * 2*xreach / width, 2);
+        this.stats = new RenderStats(job.name + "_" + maxIters[maxIters.length-1] + (rows < height ? "_rows" + rowFrom + "-" + rowTo : ""),
+                () -> total == 0 ? 0 : (double) done.get() / total);
+
+        if (job.perturbation && (!formula.name().equals("mandelbrot") || sampling == Sampling.METROPOLIS)) {
+            throw new IllegalArgumentException("perturbation only works for the mandelbrot with a grid sampler");
+        }
+
+        // the mirrored orbit is exactly the orbit of the mirrored sample, since flipping the sign of b and y doesn't
+        // round anything
+        mirror = job.symmetry && formula.conjugateSymmetric() && job.ycenter == 0 && sampling != Sampling.METROPOLIS
+                && !job.perturbation;
+
+        boolean vector = job.vector && !job.perturbation;
+        if (vector && BatchEscape.vector(formula, maxIters[maxIters.length-1], mask, job.cycles, cycleEpsilon) == null) {
+            System.out.println(getCurrentTimeStamp() + " : No vector kernel for " + formula.name()
+                    + " (needs the Java 17 build and --add-modules jdk.incubator.vector), iterating one sample at a time");
+            vector = false;
+        }
+        this.vector = vector;
+    }
+
+    /**
+     * Makes the render save its progress to the given file every interval millis, and continue from it if it exists.
+     */
+    public Renderer checkpoint(File file, long interval) {
+        this.checkpointFile = file;
+        this.checkpointInterval = interval;
+        return this;
+    }
+
+    /**
+     * Only renders every count-th work unit starting at index. Units are numbered the same way in every process, so
+     * rendering all shards in different processes and adding the results up gives the same image as rendering it here.
+     */
+    public Renderer shard(int index, int count) {
+        this.shard = index;
+        this.shards = count;
+        return this;
+    }
+
+    /**
+     * Makes the render write a preview of the biggest maxIter image to the given file while it's running, every interval
+     * millis (0 = never) and every time another step (0 to 1, 0 = never) of the work is done.
+     */
+    public Renderer preview(File file, long interval, double step, int scale) {
+        this.previewFile = file;
+        this.previewInterval = interval;
+        this.previewStep = step;
+        this.previewScale = scale;
+        return this;
+    }
+
+    /**
+     * The counters of the render, the rates stop moving once it's done.
+     */
+    public RenderStats stats() {
+        return stats;
+    }
+
+    /**
+     * Renders the given number of passes, for the metropolis sampler a pass is the same number of samples as one
+     * jittered grid.
+     *
+     * @return one histogram per maxIter, bucket i only holds the orbits that escaped between maxIters[i-1] and
+     * maxIters[i] so the image for maxIters[i] is the sum of buckets 0 to i
+     */
+    public int[][] render(int numPasses) throws IOException {
+        return render(0, numPasses);
+    }
+
+    /**
+     * Renders only passes [fromPass, toPass) of a render with toPass passes. Every pass takes the same samples no matter
+     * which passes get rendered along with it, so adding this to a render of passes [0, fromPass) gives the same result
+     * as rendering all of them at once. Not for the metropolis sampler, whose chains don't split into passes.
+     */
+    public int[][] render(int fromPass, int toPass) throws IOException {
+        if (fromPass > 0 && sampling == Sampling.METROPOLIS) {
+            throw new IllegalArgumentException("the metropolis sampler can't render a range of passes");
+        }
+        if (job.perturbation && reference == null) {
+            int digits = PerturbationEngine.Reference.digits(2*xreach / width);
+            reference = new PerturbationEngine.Reference(job.xcenterExact, job.ycenterExact, maxIters[maxIters.length-1], formula.bailout(), digits);
+        }
+        List<ForkJoinTask<?>> units = new ArrayList<>();
+        // how much each unit moves the progress bar
+        List<Integer> weights = new ArrayList<>();
+
+        if (sampling == Sampling.METROPOLIS) {
+            long samples = (long) toPass * (long) (width/delta) * (long) (height/delta);
+            for (ForkJoinTask<?> chain : new MetropolisSampler(this).chains(samples)) {
+                units.add(chain);
+                weights.add(1);
+            }
+        } else if (sampling == Sampling.ADAPTIVE) {
+            for (ForkJoinTask<?> row : new AdaptiveSampler(this, adaptiveBudget, pool).units(fromPass, toPass)) {
+                units.add(row);
+                weights.add(1);
+            }
+        } else if (sampling.sequence != null) {
+            int columns = (int) (width/delta);
+            // with the mirror the sequence only gets spread over the upper half
+            int column = (int) ((mirror ? height / 2.0 : height)/delta);
+            for (int i = fromPass; i < toPass; i++) {
+                for (int from = 0; from < columns; from += unitColumns) {
+                    int to = Math.min(from + unitColumns, columns);
+                    units.add(new SequenceTask((long) i * columns, column, from, to));
+                    weights.add(to - from);
+                }
+            }
+        } else {
+            for (int i = fromPass; i < toPass; i++) {
+                Pass pass = new Pass(i);
+                for (int from = 0; from < pass.xs.length; from += unitColumns) {
+                    int to = Math.min(from + unitColumns, pass.xs.length);
+                    units.add(new StripTask(pass, from, to));
+                    weights.add(to - from);
+                }
+            }
+        }
+        if (shards > 1) {
+            List<ForkJoinTask<?>> mine = new ArrayList<>();
+            List<Integer> myWeights = new ArrayList<>();
+            for (int i = shard; i < units.size(); i += shards) {
+                mine.add(units.get(i));
+                myWeights.add(weights.get(i));
+            }
+            units = mine;
+            weights = myWeights;
+        }
+        int total = 0;
+        for (int w : weights) {
+            total += w;
+        }
+        this.total = total;
+
+        failed = false;
+        accumulator = Accumulator.create(job.accumulation, maxIters.length, width, rows);
+        stats.start();
+        ScheduledExecutorService monitor = previewFile == null && statsInterval <= 0 ? null : startMonitor();
+        try {
+            if (checkpointFile == null) {
+                for (ForkJoinTask<?> unit : units) {
+                    pool.execute(unit);
+                }
+                join(units);
+                stopMonitor(monitor);
+                return accumulator.reduce(pool);
+            }
+
+            try (Checkpoint checkpoint = Checkpoint.open(checkpointFile, key(fromPass > 0 ? fromPass + "-" + toPass : String.valueOf(toPass)), units.size(), maxIters.length, width*rows)) {
+                this.checkpoint = checkpoint;
+                List<Integer> todo = new ArrayList<>();
+                for (int i = 0; i < units.size(); i++) {
+                    if (checkpoint.isDone(i)) {
+                        done.addAndGet(weights.get(i));
+                    } else {
+                        todo.add(i);
+                    }
+                }
+                if (todo.size() < units.size()) {
+                    System.out.println(getCurrentTimeStamp() + " : Resuming from " + checkpointFile + ", "
+                            + checkpoint.doneCount() + "/" + units.size() + " units done");
+                }
+
+                // units get run in waves, and after every wave that ends past the interval we save
+                int wave = pool.getParallelism() * 4;
+                List<Integer> finished = new ArrayList<>();
+                long last = System.currentTimeMillis();
+                for (int start = 0; start < todo.size(); start += wave) {
+                    List<Integer> current = todo.subList(start, Math.min(start + wave, todo.size()));
+                    List<ForkJoinTask<?>> running = new ArrayList<>();
+                    for (int i : current) {
+                        running.add(units.get(i));
+                        pool.execute(units.get(i));
+                    }
+                    join(running);
+                    finished.addAll(current);
+
+                    if (System.currentTimeMillis() - last >= checkpointInterval) {
+                        synchronized (previewLock) {
+                            checkpoint.save(accumulator, finished, pool);
+                        }
+                        finished.clear();
+                        last = System.currentTimeMillis();
+                    }
+                }
+                stopMonitor(monitor);
+                checkpoint.save(accumulator, finished, pool);
+                return checkpoint.read();
+            } finally {
+                this.checkpoint = null;
+            }
+        } finally {
+            stopMonitor(monitor);
+            stats.stop();
+            workers.clear();
+            accumulator.close();
+            accumulator = null;
+        }
+    }
+
+    /**
+     * Joins the units. If one of them fails, the others get cancelled and the tasks that are already running get
+     * waited for before the failure gets thrown, so nothing uses the workers or the accumulator once render closes them.
+     */
+    private void join(List<ForkJoinTask<?>> units) {
+        try {
+            for (ForkJoinTask<?> unit : units) {
+                unit.join();
+            }
+        } catch (RuntimeException | Error e) {
+            failed = true;
+            for (ForkJoinTask<?> unit : units) {
+                unit.cancel(false);
+            }
+            synchronized (busy) {
+                try {
+                    while (busy.get() > 0) {
+                        busy.wait();
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the thread that writes the previews and logs the stats while the render is running.
+     */
+    private ScheduledExecutorService startMonitor() {
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Monitor");
+            t.setDaemon(true);
+            return t;
+        });
+
+        if (statsInterval > 0) {
+            long[] last = stats.lineStart();
+            monitor.scheduleWithFixedDelay(() -> System.out.println("\n" + getCurrentTimeStamp() + " : " + stats.line(last)),
+                    statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+        }
+        if (previewFile == null) {
+            return monitor;
+        }
+
+        final long[] lastTime = {System.currentTimeMillis()};
+        final double[] lastDone = {(double) done.get() / total};
+        monitor.scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            double progress = (double) done.get() / total;
+            if ((previewInterval > 0 && now - lastTime[0] >= previewInterval)
+                    || (previewStep > 0 && progress - lastDone[0] >= previewStep)) {
+                lastTime[0] = now;
+                lastDone[0] = progress;
+                try {
+                    writePreview();
+                } catch (Exception e) {
+                    System.out.println("\n" + getCurrentTimeStamp() + " : Couldn't write preview: " + e);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        return monitor;
+    }
+
+    private static void stopMonitor(ScheduledExecutorService monitor) {
+        if (monitor == null || monitor.isShutdown()) {
+            return;
+        }
+        // lets a preview that's being written right now finish, the scheduled ones get dropped
+        monitor.shutdown();
+        try {
+            monitor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sums up every bucket (which gives us the biggest maxIter) without stopping the workers, shrinks it and writes it
+     * out next to the real images.
+     */
+    private void writePreview() throws IOException {
+        int[] vals = new int[width*rows];
+        synchronized (previewLock) {
+            Checkpoint checkpoint = this.checkpoint;
+            for (int b = 0; b < maxIters.length; b++) {
+                accumulator.snapshot(b, vals);
+                if (checkpoint != null) {
+                    checkpoint.snapshot(b, vals);
+                }
+            }
+        }
+
+        int s = previewScale;
+        int pw = Math.max(1, width / s), ph = Math.max(1, rows / s);
+        int[] small = new int[pw*ph];
+        for (int y = 0; y < ph*s && y < rows; y++) {
+            for (int x = 0; x < pw*s && x < width; x++) {
+                small[x/s + pw*(y/s)] += vals[x + width*y];
+            }
+        }
+
+        // written next to it first so nobody ever opens half a png
+        previewFile.getAbsoluteFile().getParentFile().mkdirs();
+        File tmp = new File(previewFile.getPath() + ".tmp");
+        ImageIO.write(ToneMap.toGray(small, pw, ph), "png", tmp);
+        Files.move(tmp.toPath(), previewFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Everything that changes which samples a render takes or where they end up, a checkpoint only gets resumed by a
+     * render with the same key.
+     */
+    private String key(String passes) {
+        return formula.name() + " " + formula.bailout() + " " + width + "x" + height + " " + job.xcenter + " "
+                + job.ycenter + " " + job.magn + " " + delta + " " + passes + " " + sampling + (sampling == Sampling.ADAPTIVE ? " " + adaptiveBudget : "") + " " + Arrays.toString(maxIters) + " " + (mask != null) + (shards > 1 ? " " + shard + "/" + shards : "")
+                + (rows < height ? " rows " + rowFrom + "-" + (rowFrom + rows) : "")
+                + (job.perturbation ? " perturbation " + job.xcenterExact + " " + job.ycenterExact : "")
+                + (mirror ? " mirrored" : "")
+                + (job.cycles != OrbitEngine.Cycles.RING ? " " + job.cycles + " " + job.cycleEpsilon : "");
+    }
+
+    /**
+     * Everything that changes which samples a pass takes or where they end up, so renders with the same parameters can
+     * be added up pass by pass.
+     */
+    public String parameters() {
+        return key("*");
+    }
+
+    Worker worker() {
+        return workers.computeIfAbsent(Thread.currentThread(), t -> new Worker());
+    }
+
+    /**
+     * The worker of the calling thread for a task of the render, which has to call release once it's done with it.
+     *
+     * @return null if a unit of the render failed, the task should stop right away then (without calling release)
+     */
+    Worker acquire() {
+        busy.incrementAndGet();
+        if (failed) {
+            release();
+            return null;
+        }
+        return worker();
+    }
+
+    void release() {
+        if (busy.decrementAndGet() == 0 && failed) {
+            synchronized (busy) {
+                busy.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the index of the smallest maxIter an orbit that escaped at the given iteration counts for
+     */
+    int level(int escape) {
+        int level = 0;
+        while (maxIters[level] <= escape) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * The starting coordinates of every column of one jittered grid. They come from the same random sequence the
+     * threads used to consume so the samples don't depend on how the work gets split up.
+     */
+    private class Pass {
+        final double[] xs;
+        final double[] ys;
+
+        Pass(int index) {
+            int columns = (int) (width/delta) + 3;
+            double[] xs = new double[columns];
+            double[] ys = new double[columns];
+
+            // the random is here because when I started x and y at 0 there was a bunch of weird lines in the end result
+            Random r = new Random(index + 2137);
+            int n = 0;
+            for (double x = -r.nextDouble() * delta; x < width; x += delta) {
+                xs[n] = x;
+                ys[n] = -r.nextDouble() * delta;
+                n++;
+            }
+
+            this.xs = Arrays.copyOf(xs, n);
+            this.ys = Arrays.copyOf(ys, n);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class StripTask extends RecursiveAction {
+        private final Pass pass;
+        private final int from, to;
+
+        StripTask(Pass pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                Worker w = acquire();
+                if (w == null) {
+                    return;
+                }
+                try {
+                    for (int c = from; c < to; c++) {
+                        w.column(pass.xs[c], pass.ys[c]);
+                        progress();
+                    }
+                } finally {
+                    release();
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new StripTask(pass, from, mid), new StripTask(pass, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Columns [from, to) of a pass of a sequence sampler, column c being the column points starting at point
+     * (first + c) * column of the sequence.
+     */
+    @SuppressWarnings("serial")
+    private class SequenceTask extends RecursiveAction {
+        private final long first;
+        private final int column, from, to;
+
+        SequenceTask(long first, int column, int from, int to) {
+            this.first = first;
+            this.column = column;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                Worker w = acquire();
+                if (w == null) {
+                    return;
+                }
+                try {
+                    for (int c = from; c < to; c++) {
+                        w.points(sampling.sequence, (first + c) * column, column);
+                        progress();
+                    }
+                } finally {
+                    release();
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SequenceTask(first, column, from, mid), new SequenceTask(first, column, mid, to));
+            }
+        }
+    }
+
+    class Worker {
+        final int maxIter = maxIters[maxIters.length-1];
+        final OrbitEngine engine = new OrbitEngine(formula, xmin, xmax, ymin, ymax, width, height, maxIter, mask, rowFrom, rowFrom + rows)
+                .cycles(job.cycles, cycleEpsilon).mirror(mirror);
+        // only used with perturbation, which replaces the one above
+        final PerturbationEngine deep = reference != null ? new PerturbationEngine(reference, formula, xreach, yreach, width, height, maxIter, rowFrom, rowFrom + rows) : null;
+        // what probe iterates with. The adaptive sampler's first pass has to count the hits of the whole image, or
+        // every band would spread its samples differently
+        final OrbitEngine wholeEngine = sampling == Sampling.ADAPTIVE && rows < height
+                ? new OrbitEngine(formula, xmin, xmax, ymin, ymax, width, height, maxIter, mask).cycles(job.cycles, cycleEpsilon) : engine;
+        final PerturbationEngine wholeDeep = deep != null && sampling == Sampling.ADAPTIVE && rows < height
+                ? new PerturbationEngine(reference, formula, xreach, yreach, width, height, maxIter, 0, height) : deep;
+        // the starting points of the current column
+        final double[] as = new double[(int) (height/delta) + 2];
+        final double[] bs = new double[as.length];
+        // what this thread counted since the end of its last column
+        final RenderStats.Tally tally = new RenderStats.Tally();
+        // samples at or below this row are left to the mirror
+        final double end = mirror ? height / 2.0 : height;
+        // whether the next column gets iterated twice, ADAPTIVE flips this after every column
+        boolean twice = recording == Recording.TWICE;
+        // what every orbit of the current column counts for
+        int weight = 1;
+        // the first pass of TWICE for a whole column, and what it found
+        final BatchEscape batch = vector ? BatchEscape.vector(formula, maxIter, mask, job.cycles, cycleEpsilon) : null;
+        final int[] escapes = batch != null ? new int[as.length] : null;
+        final int[] steps = batch != null ? new int[as.length] : null;
+
+        void column(double x, double y0) {
+            column(x, y0, end, delta, 1);
+        }
+
+        /**
+         * Samples x and every step-th y from y0 up to y1 (in pixels), every orbit gets added weight times.
+         */
+        void column(double x, double y0, double y1, double step, int weight) {
+            this.weight = weight;
+            double a = a(x);
+            int n = 0;
+            for (double y = y0; y < y1; y += step) {
+                as[n] = a;
+                bs[n] = b(y);
+                n++;
+            }
+            run(n);
+        }
+
+        /**
+         * Samples points index to index+n-1 of the sequence, spread over the part of the viewport that gets sampled.
+         */
+        void points(Sequence sequence, long index, int n) {
+            this.weight = 1;
+            sequence.fill(index, n, as, bs);
+            for (int i = 0; i < n; i++) {
+                as[i] = a(as[i] * width);
+                bs[i] = b(bs[i] * end);
+            }
+            run(n);
+        }
+
+        // pixel coordinates to what the engine starts from, offsets from the center with perturbation
+        private double a(double x) {
+            return deep != null ? map(x, 0, width, -xreach, xreach) : map(x, 0, width, xmin, xmax);
+        }
+
+        private double b(double y) {
+            return deep != null ? map(y, 0, height, yreach, -yreach) : map(y, 0, height, ymax, ymin);
+        }
+
+        /**
+         * Iterates the first n starting points in as and bs.
+         */
+        private void run(int n) {
+            if (deep != null) {
+                for (int i = 0; i < n; i++) {
+                    int escape = deep.iterate(as[i], bs[i]);
+                    tally.orbit(escape, deep.steps, maxIter);
+                    tally.rebases += deep.rebases;
+                    if (escape >= 0) {
+                        add(level(escape), deep.orbit, deep.length, deep.length);
+                    }
+                }
+                stats.add(tally);
+                return;
+            }
+
+            boolean batched = twice && batch != null;
+            if (batched) {
+                batch.escape(as, bs, n, escapes, steps);
+            }
+
+            // iterations of all the orbits and of the ones that escaped
+            long all = 0, escaped = 0;
+            for (int i = 0; i < n; i++) {
+                double a = as[i], b = bs[i];
+
+                // orbits that never escape (or got stuck in a period) don't count
+                int escape, s;
+                if (batched) {
+                    escape = escapes[i];
+                    s = steps[i];
+                } else {
+                    escape = twice ? engine.escape(a, b) : engine.iterate(a, b);
+                    s = engine.steps;
+                }
+                all += s;
+                tally.orbit(escape, s, maxIter);
+                if (escape < 0) {
+                    continue;
+                }
+                escaped += s;
+
+                if (twice) {
+                    engine.iterate(a, b);
+                    tally.iterations += engine.steps;
+                }
+
+                // the orbit counts for every maxIter bigger than the iteration it escaped at,
+                // but we only add it to the smallest one of those and sum them up later
+                add(level(escape), engine.orbit, engine.length, engine.length - engine.mirrored);
+            }
+            stats.add(tally);
+
+            if (recording == Recording.ADAPTIVE) {
+                twice = escaped < twiceBelow * all;
+            }
+        }
+
+        /**
+         * Iterates the sample at pixel (x, y) without adding it anywhere.
+         *
+         * @return its on screen hits, 0 if it doesn't escape
+         */
+        int probe(double x, double y) {
+            if (wholeDeep != null) {
+                int escape = wholeDeep.iterate(map(x, 0, width, -xreach, xreach), map(y, 0, height, yreach, -yreach));
+                tally.orbit(escape, wholeDeep.steps, maxIter);
+                tally.rebases += wholeDeep.rebases;
+                return escape < 0 ? 0 : wholeDeep.length;
+            }
+            int escape = wholeEngine.iterate(map(x, 0, width, xmin, xmax), map(y, 0, height, ymax, ymin));
+            tally.orbit(escape, wholeEngine.steps, maxIter);
+            return escape < 0 ? 0 : wholeEngine.length - wholeEngine.mirrored;
+        }
+
+        /**
+         * Adds an orbit to the histograms with the weight of the current column. Hits is how many of its points the
+         * sample itself had, the mirror images the engine added aren't counted since those are compared to the
+         * iterations of the orbits that actually got sampled.
+         */
+        void add(int level, int[] orbit, int length, int hits) {
+            accumulator.add(level, orbit, length, weight);
+            tally.hits += hits;
+        }
+    }
+
+    void progress() {
+        int d = done.incrementAndGet();
+        if (d*56L/total != (d-1)*56L/total) {
+            System.out.print("#");
+        }
+    }
+}
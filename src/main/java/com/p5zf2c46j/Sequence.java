@@ -0,0 +1,106 @@
+package com.p5zf2c46j;
+
+import java.util.SplittableRandom;
+
+/**
+ * Endless sequences of points in the unit square that can be started at any index, so any range of samples can be
+ * generated by whichever thread gets it and still comes out the same. A pass takes the next (width/delta)*(height/delta)
+ * points of the sequence, so more passes keep filling the gaps of the earlier ones instead of starting over.
+ *
+ * The low discrepancy ones spread their points a lot more evenly than random ones do, without the lines a grid with one
+ * offset for the whole column leaves behind.
+ */
+enum Sequence {
+    /**
+     * Independent uniform points. Point i is the SplittableRandom stream of a fixed seed skipped ahead by 2i values.
+     */
+    RANDOM {
+        @Override
+        void fill(long index, int n, double[] xs, double[] ys) {
+            SplittableRandom r = new SplittableRandom(seed + 2 * index * gamma);
+            for (int i = 0; i < n; i++) {
+                xs[i] = r.nextDouble();
+                ys[i] = r.nextDouble();
+            }
+        }
+    },
+
+    /**
+     * Radical inverses of the index in bases 2 and 3.
+     */
+    HALTON {
+        @Override
+        void fill(long index, int n, double[] xs, double[] ys) {
+            for (int i = 0; i < n; i++) {
+                long k = index + i + 1;
+                xs[i] = (Long.reverse(k) >>> 11) * unit;
+                double y = 0, f = 1.0/3;
+                for (long m = k; m > 0; m /= 3) {
+                    y += (m % 3) * f;
+                    f /= 3;
+                }
+                ys[i] = y;
+            }
+        }
+    },
+
+    /**
+     * The first two dimensions of Sobol's sequence, the first one is the same as Halton's.
+     */
+    SOBOL {
+        @Override
+        void fill(long index, int n, double[] xs, double[] ys) {
+            for (int i = 0; i < n; i++) {
+                long k = index + i + 1;
+                long y = 0;
+                for (int b = 0; k >>> b != 0; b++) {
+                    if ((k >>> b & 1) != 0) {
+                        y ^= directions[b];
+                    }
+                }
+                xs[i] = (Long.reverse(k) >>> 11) * unit;
+                ys[i] = (y >>> 11) * unit;
+            }
+        }
+    },
+
+    /**
+     * Roberts' R2 sequence, i * (1/g, 1/g^2) mod 1 with g the plastic number. The multiplication is done in 64 bit fixed
+     * point so it doesn't lose precision however far into the sequence we are.
+     */
+    R2 {
+        @Override
+        void fill(long index, int n, double[] xs, double[] ys) {
+            long x = (index + 1) * alpha1 + half, y = (index + 1) * alpha2 + half;
+            for (int i = 0; i < n; i++) {
+                xs[i] = (x >>> 11) * unit;
+                ys[i] = (y >>> 11) * unit;
+                x += alpha1;
+                y += alpha2;
+            }
+        }
+    };
+
+    private static final double unit = 0x1.0p-53;
+    private static final long seed = 2137L;
+    // the increment SplittableRandom uses for seeds it's given
+    private static final long gamma = 0x9e3779b97f4a7c15L;
+
+    // 1/g and 1/g^2 times 2^64, rounded, and 0.5
+    private static final long alpha1 = 0xc13fa9a902a6328fL, alpha2 = 0x91e10da5c79e7b1dL, half = 1L << 63;
+
+    // direction numbers of the second dimension, for the primitive polynomial x + 1
+    private static final long[] directions = new long[64];
+
+    static {
+        directions[0] = 1L << 63;
+        for (int b = 1; b < 64; b++) {
+            directions[b] = directions[b-1] ^ (directions[b-1] >>> 1);
+        }
+    }
+
+    /**
+     * Puts points index to index+n-1 of the sequence into xs and ys, all in [0, 1).
+     */
+    abstract void fill(long index, int n, double[] xs, double[] ys);
+}
@@ -0,0 +1,212 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.util.PngWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.p5zf2c46j.BuddhaThreaded.numThreads;
+import static com.p5zf2c46j.util.P3Utils.*;
+import static java.time.Instant.now;
+
+/**
+ * Renders images too big for memory a band of job.tileRows rows at a time. Every band takes the same samples as an
+ * untiled render but only records the points of the orbits that land inside it (and with symmetry the points whose
+ * mirror image lands inside it), and its buckets go to disk as soon as it's done. The images then get put together from
+ * the band files one band at a time, so nothing ever holds more than one band. The adaptive sampler's first pass always
+ * looks at the whole image, so every band spreads its samples the same way too.
+ *
+ * The bands are full rows wide so the PNGs can be written top to bottom. Every band costs a whole render's worth of
+ * iterations, so they should be as tall as memory allows: a band takes width * rows * 4 bytes per maxIter (per thread
+ * with the thread accumulator, the striped one only needs it once).
+ *
+ * Band files are normal histogram files of their part of the view. They stay in out/bands_maxIter unless raw is false,
+ * next to a .key file with the parameters they were rendered with (see Renderer.parameters), and a render of the same
+ * job that got stopped skips every band that already has both.
+ */
+public class Tiled {
+
+    /**
+     * Renders and writes every image of the job band by band.
+     */
+    static void run(RenderJob job, ForkJoinPool pool, InteriorMask mask) throws IOException {
+        int bands = (job.height + job.tileRows - 1) / job.tileRows;
+
+        for (int[] maxIters : BuddhaThreaded.groups(job)) {
+            int maxIter = maxIters[maxIters.length-1];
+            File dir = new File(job.out, "bands_" + maxIter);
+            List<File> files = new ArrayList<>();
+            // what every band file got rendered with, see Renderer.parameters
+            List<File> keyFiles = new ArrayList<>();
+
+            long time = -System.currentTimeMillis();
+            for (int b = 0; b < bands; b++) {
+                int from = b * job.tileRows, to = Math.min(job.height, from + job.tileRows);
+                File file = new File(dir, "band_" + b + ".bdh");
+                File keyFile = new File(dir, "band_" + b + ".key");
+                files.add(file);
+                keyFiles.add(keyFile);
+                Renderer renderer = BuddhaThreaded.renderer(job, maxIters, pool, mask, "_band" + b, from, to);
+                String key = renderer.parameters() + " " + job.passes + " passes";
+                if (file.exists() && keyFile.exists() && new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.UTF_8).equals(key)) {
+                    // done by an earlier run of the same job
+                    continue;
+                }
+
+                long bandTime = -System.currentTimeMillis();
+                int[][] buckets = renderer.render(job.passes);
+                // the key goes last, so a band that got cut off while being written gets rendered again
+                keyFile.delete();
+                Histograms.write(file, info(job, maxIters, from, to), buckets);
+                Files.write(keyFile.toPath(), key.getBytes(StandardCharsets.UTF_8));
+
+                bandTime += System.currentTimeMillis();
+                System.out.println("\n" + getCurrentTimeStamp() + " : Completed band " + (b+1) + "/" + bands + " (rows "
+                        + from + "-" + to + ") in " + formatMillis(bandTime));
+                System.out.println(getCurrentTimeStamp() + " : " + renderer.stats().summary());
+            }
+
+            time += System.currentTimeMillis();
+            String name = "Renderer ["+maxIter+", "+job.passes+" passes, "+numThreads+" threads, "+bands+" bands]";
+            System.out.println(getCurrentTimeStamp()+" : Completed "+name+" in "+formatMillis(time));
+
+            export(job, maxIters, files, pool);
+            if (!job.raw) {
+                for (int b = 0; b < bands; b++) {
+                    files.get(b).delete();
+                    keyFiles.get(b).delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+
+    /**
+     * The info of a band, which is the view of just that band so Regrade can make an image out of it on its own.
+     */
+    private static Histograms.Info info(RenderJob job, int[] maxIters, int from, int to) {
+        Histograms.Info whole = new Histograms.Info(job, maxIters);
+        double yreach = (2.0*job.height)/(job.magn*job.width);
+        double ycenter = job.ycenter + yreach - (from + to) * yreach / job.height;
+        return new Histograms.Info(whole.formula, job.width, to - from, job.xcenter, ycenter, job.magn, job.delta,
+                job.passes, whole.samples, maxIters);
+    }
+
+    /**
+     * Writes the image of every level (and the nebulabrot) in the band files, which come out the same as if the whole
+     * thing had been rendered at once.
+     */
+    private static void export(RenderJob job, int[] maxIters, List<File> files, ForkJoinPool pool) throws IOException {
+        int n = maxIters.length;
+        boolean[] gray = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            gray[i] = Arrays.binarySearch(job.levels, maxIters[i]) >= 0;
+        }
+        // which image every nebula channel is, or null if this render doesn't have all of them
+        int[] nebula = null;
+        if (job.nebula != null) {
+            nebula = new int[3];
+            for (int c = 0; c < 3 && nebula != null; c++) {
+                nebula[c] = Arrays.binarySearch(maxIters, job.nebula[c]);
+                if (nebula[c] < 0) {
+                    nebula = null;
+                }
+            }
+        }
+
+        // the first time through only finds the darkest and brightest pixel of every image, so all bands get the same
+        // scale
+        int[] lo = new int[n], hi = new int[n];
+        Arrays.fill(lo, Integer.MAX_VALUE);
+        Arrays.fill(hi, Integer.MIN_VALUE);
+        for (File file : files) {
+            int[][] images = images(file);
+            for (int i = 0; i < n; i++) {
+                int[] range = ToneMap.range(images[i], pool);
+                lo[i] = Math.min(lo[i], range[0]);
+                hi[i] = Math.max(hi[i], range[1]);
+            }
+        }
+
+        job.out.mkdirs();
+        long epoch = now().getEpochSecond();
+        List<OutputStream> streams = new ArrayList<>();
+        try {
+            PngWriter[] grays = new PngWriter[n];
+            for (int i = 0; i < n; i++) {
+                if (gray[i]) {
+                    grays[i] = new PngWriter(open(new File(job.out, maxIters[i] + "_" + epoch + ".png"), streams),
+                            job.width, job.height, 1, job.pngLevel, pool);
+                }
+            }
+            PngWriter rgb = null;
+            if (nebula != null) {
+                String fileName = "nebula_" + job.nebula[0] + "-" + job.nebula[1] + "-" + job.nebula[2] + "_" + epoch + ".png";
+                rgb = new PngWriter(open(new File(job.out, fileName), streams), job.width, job.height, 3, job.pngLevel, pool);
+            }
+
+            for (File file : files) {
+                int[][] images = images(file);
+                int rows = images[0].length / job.width;
+
+                short[] pixels = new short[images[0].length];
+                for (int i = 0; i < n; i++) {
+                    if (gray[i]) {
+                        ToneMap.band(images[i], pixels, 1, 0, ToneMap.sqrt, lo[i], hi[i], pool);
+                        grays[i].rows(pixels, rows);
+                    }
+                }
+                if (rgb != null) {
+                    short[] rgbPixels = new short[3 * images[0].length];
+                    for (int c = 0; c < 3; c++) {
+                        int i = nebula[c];
+                        ToneMap.band(images[i], rgbPixels, 3, c, ToneMap.sqrt, lo[i], hi[i], pool);
+                    }
+                    rgb.rows(rgbPixels, rows);
+                }
+            }
+
+            for (PngWriter png : grays) {
+                if (png != null) {
+                    png.finish();
+                }
+            }
+            if (rgb != null) {
+                rgb.finish();
+            }
+        } finally {
+            for (OutputStream out : streams) {
+                out.close();
+            }
+        }
+    }
+
+    private static OutputStream open(File file, List<OutputStream> streams) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1<<16);
+        streams.add(out);
+        return out;
+    }
+
+    /**
+     * Reads a band file and adds its buckets up in place, so entry i is the image of maxIters[i].
+     */
+    private static int[][] images(File file) throws IOException {
+        int[][] buckets = Histograms.read(file).buckets;
+        for (int i = 1; i < buckets.length; i++) {
+            int[] prev = buckets[i-1], cur = buckets[i];
+            for (int j = 0; j < cur.length; j++) {
+                cur[j] += prev[j];
+            }
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,180 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.util.Parallel;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.p5zf2c46j.util.P3Utils.map;
+
+/**
+ * Turns histograms into 16 bit grayscale or 16 bit per channel RGB images.
+ */
+public class ToneMap {
+
+    /**
+     * Maps a count scaled to [0, 1) to a brightness in [0, 1).
+     */
+    public interface Curve {
+        double apply(double m);
+    }
+
+    // what every image used to get, Math.sqrt gives the exact same values as Math.pow(m, 0.5) only faster
+    public static final Curve sqrt = Math::sqrt;
+
+    // counts per parallel chunk
+    private static final int grain = 1<<16;
+    // ranges of counts smaller than this get a lookup table instead of applying the curve to every pixel
+    private static final int lutSize = 1<<22;
+
+    /**
+     * Parses gamma:g, log:k, asinh:k, linear or sqrt. log and asinh lift the dark parts more the bigger k is.
+     */
+    public static Curve curve(String spec) {
+        String[] parts = spec.split(":");
+        double k = parts.length > 1 ? Double.parseDouble(parts[1]) : 1000;
+        switch (parts[0].toLowerCase()) {
+            case "sqrt": return sqrt;
+            case "linear": return m -> m;
+            case "gamma": {
+                double g = parts.length > 1 ? Double.parseDouble(parts[1]) : 0.5;
+                return m -> Math.pow(m, g);
+            }
+            case "log": {
+                double norm = Math.log1p(k);
+                return m -> Math.log1p(k * m) / norm;
+            }
+            case "asinh": {
+                double norm = asinh(k);
+                return m -> asinh(k * m) / norm;
+            }
+            default: throw new IllegalArgumentException("Unknown curve: " + spec);
+        }
+    }
+
+    private static double asinh(double x) {
+        return Math.log(x + Math.sqrt(x*x + 1));
+    }
+
+    public static BufferedImage toGray(int[] vals, int width, int height) {
+        return toGray(vals, width, height, sqrt, -1, ForkJoinPool.commonPool());
+    }
+
+    public static BufferedImage toGray(int[] vals, int width, int height, Curve curve, int white) {
+        return toGray(vals, width, height, curve, white, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Counts of white and above all come out white (-1 = the biggest count), which together with clip lets a few very
+     * bright pixels stop squashing the rest of the image.
+     */
+    public static BufferedImage toGray(int[] vals, int width, int height, Curve curve, int white, ForkJoinPool pool) {
+        BufferedImage cvs = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+        short[] pixels = ((DataBufferUShort)cvs.getRaster().getDataBuffer()).getData();
+        channel(vals, pixels, 1, 0, curve, white, pool);
+        return cvs;
+    }
+
+    /**
+     * @return the count that fraction of the non zero pixels are at or below
+     */
+    public static int clip(int[] vals, double fraction) {
+        int[] sorted = Arrays.stream(vals).filter(v -> v > 0).sorted().toArray();
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(fraction * sorted.length))];
+    }
+
+    /**
+     * Makes an RGB image out of three histograms, every channel gets scaled on its own the same way toGray does it.
+     */
+    public static BufferedImage toRgb(int[] red, int[] green, int[] blue, int width, int height, ForkJoinPool pool) {
+        ComponentColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                new int[] {16, 16, 16}, false, false, Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+        WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, width, height, 3, null);
+        short[] pixels = ((DataBufferUShort)raster.getDataBuffer()).getData();
+
+        int[][] channels = {red, green, blue};
+        for (int c = 0; c < 3; c++) {
+            channel(channels[c], pixels, 3, c, sqrt, -1, pool);
+        }
+
+        return new BufferedImage(model, raster, false, null);
+    }
+
+    /**
+     * Tone maps vals into every stride-th pixel starting at offset.
+     */
+    private static void channel(int[] vals, short[] pixels, int stride, int offset, Curve curve, int white, ForkJoinPool pool) {
+        int[] range = range(vals, pool);
+        band(vals, pixels, stride, offset, curve, range[0], white < 0 ? range[1] : white, pool);
+    }
+
+    /**
+     * Tone maps a band of a bigger image the same way channel maps a whole one, bot and w are the smallest and the white
+     * count of the whole image so the bands match up.
+     */
+    static void band(int[] vals, short[] pixels, int stride, int offset, Curve curve, int bot, int w, ForkJoinPool pool) {
+        double top = w+1;
+
+        if ((long) w - bot < lutSize) {
+            // every count in range gets its pixel value once, the pixels just look it up
+            short[] lut = new short[w - bot + 1];
+            Parallel.range(pool, 0, lut.length, grain, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    double m = map(bot + i, bot, top, 0, 1);
+                    lut[i] = (short) (curve.apply(m) * 65536);
+                }
+            });
+            Parallel.range(pool, 0, vals.length, grain, (from, to) -> {
+                for (int j = from; j < to; j++) {
+                    pixels[stride*j + offset] = lut[Math.min(vals[j], w) - bot];
+                }
+            });
+        } else {
+            Parallel.range(pool, 0, vals.length, grain, (from, to) -> {
+                for (int j = from; j < to; j++) {
+                    double m = map(Math.min(vals[j], w), bot, top, 0, 1);
+                    pixels[stride*j + offset] = (short) (curve.apply(m) * 65536);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the smallest and the biggest value, found in one pass
+     */
+    static int[] range(int[] vals, ForkJoinPool pool) {
+        int[] range = {vals[0], vals[0]};
+        Parallel.range(pool, 0, vals.length, grain, (from, to) -> {
+            int lo = vals[from], hi = vals[from];
+            for (int j = from; j < to; j++) {
+                int v = vals[j];
+                lo = Math.min(lo, v);
+                hi = Math.max(hi, v);
+            }
+            synchronized (range) {
+                range[0] = Math.min(range[0], lo);
+                range[1] = Math.max(range[1], hi);
+            }
+        });
+        return range;
+    }
+
+    static int max(int[] array) {
+        int m = array[0];
+        for (int a : array) {
+            m = Math.max(a, m);
+        }
+        return m;
+    }
+}
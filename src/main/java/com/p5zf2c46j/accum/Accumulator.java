@@ -0,0 +1,64 @@
+package com.p5zf2c46j.accum;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Where the renderer puts its orbits. Every implementation holds one histogram per bucket (maxIter level) and can be
+ * written to from any number of threads at once.
+ */
+public interface Accumulator extends AutoCloseable {
+
+    enum Mode {
+        // every thread has its own histograms which get summed up at the end, fastest but uses the most memory
+        THREAD,
+        // one set of histograms for everyone with atomic increments
+        SHARED,
+        // one set of histograms split into blocks of rows, each with its own lock
+        STRIPED,
+        // like striped but memory mapped from a scratch file in data/cache while the render runs, reduce still copies
+        // the result to the heap (up to 2 GB per bucket, images bigger than that or the heap need tile.rows)
+        MAPPED
+    }
+
+    /**
+     * Adds weight to each of the first length pixel indexes of orbit in the given bucket.
+     */
+    void add(int bucket, int[] orbit, int length, int weight);
+
+    /**
+     * Adds everything added so far to target and resets the given bucket, only called while nothing is being added.
+     */
+    void drain(int bucket, IntBuffer target, ForkJoinPool pool);
+
+    /**
+     * Adds the current contents of the given bucket to target without resetting anything. Safe to call while other
+     * threads are adding, the result might just be a little out of date.
+     */
+    void snapshot(int bucket, int[] target);
+
+    /**
+     * Collects the final histograms, must only be called once every add is done.
+     */
+    int[][] reduce(ForkJoinPool pool);
+
+    /**
+     * Lets go of the histograms, whether or not reduce got called. Gets called once the render is done with the
+     * accumulator, the arrays reduce returned stay valid.
+     */
+    @Override
+    default void close() {
+    }
+
+    static Accumulator create(Mode mode, int buckets, int width, int height) throws IOException {
+        switch (mode) {
+            case MAPPED: return StripedAccumulator.mapped(buckets, width, height, new File(Paths.get("").toAbsolutePath() + "/data/cache"));
+            case SHARED: return new SharedAccumulator(buckets, width*height);
+            case STRIPED: return new StripedAccumulator(buckets, width, height);
+            default: return new ThreadAccumulator(buckets, width*height);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.p5zf2c46j.accum;
+
+import com.p5zf2c46j.util.Parallel;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * One set of histograms shared by all threads, every hit is an atomic increment. Uses the least memory, but threads
+ * fight over the cache lines of the brightest pixels.
+ */
+public class SharedAccumulator implements Accumulator {
+    private final AtomicIntegerArray[] vals;
+
+    public SharedAccumulator(int buckets, int size) {
+        vals = new AtomicIntegerArray[buckets];
+        for (int b = 0; b < buckets; b++) {
+            vals[b] = new AtomicIntegerArray(size);
+        }
+    }
+
+    @Override
+    public void add(int bucket, int[] orbit, int length, int weight) {
+        AtomicIntegerArray v = vals[bucket];
+        for (int i = 0; i < length; i++) {
+            v.getAndAdd(orbit[i], weight);
+        }
+    }
+
+    @Override
+    public void snapshot(int bucket, int[] target) {
+        AtomicIntegerArray v = vals[bucket];
+        if (v == null) {
+            return;
+        }
+        for (int j = 0; j < target.length; j++) {
+            target[j] += v.get(j);
+        }
+    }
+
+    @Override
+    public void drain(int bucket, final IntBuffer target, ForkJoinPool pool) {
+        final AtomicIntegerArray src = vals[bucket];
+        Parallel.range(pool, 0, src.length(), 1<<16, (from, to) -> {
+            for (int j = from; j < to; j++) {
+                target.put(j, target.get(j) + src.getAndSet(j, 0));
+            }
+        });
+    }
+
+    @Override
+    public int[][] reduce(ForkJoinPool pool) {
+        int[][] out = new int[vals.length][];
+        for (int b = 0; b < vals.length; b++) {
+            final AtomicIntegerArray src = vals[b];
+            final int[] dst = out[b] = new int[src.length()];
+            Parallel.range(pool, 0, dst.length, 1<<16, (from, to) -> {
+                for (int j = from; j < to; j++) {
+                    dst[j] = src.get(j);
+                }
+            });
+            vals[b] = null;
+        }
+        return out;
+    }
+}
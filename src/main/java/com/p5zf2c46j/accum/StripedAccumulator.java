@@ -0,0 +1,187 @@
+package com.p5zf2c46j.accum;
+
+import com.p5zf2c46j.util.Parallel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * One set of histograms shared by all threads and split into stripes of rows, each guarded by its own lock. An orbit
+ * is first sorted by stripe (counting sort into a per thread buffer) so every stripe it touches only gets locked once.
+ *
+ * The histograms are either plain int arrays or memory mapped from a scratch file, in which case they don't take up
+ * any heap while the render runs and the OS decides what stays in memory. That's all it saves, reduce copies them
+ * into int arrays like every other accumulator.
+ */
+public class StripedAccumulator implements Accumulator {
+    // rows per stripe
+    private static final int stripeRows = 16;
+
+    private final IntBuffer[] vals;
+    // the scratch file of a mapped accumulator, null on the heap
+    private final File file;
+    private final int size;
+    private final int stripeSize;
+    private final int stripes;
+    private final Object[] locks;
+
+    // the pool threads outlive us, so neither the scratch nor the code that makes it can point back to the accumulator
+    private final ThreadLocal<Scratch> scratch;
+
+    public StripedAccumulator(int buckets, int width, int height) {
+        this(heap(buckets, width*height), null, width, height);
+    }
+
+    private StripedAccumulator(IntBuffer[] vals, File file, int width, int height) {
+        this.vals = vals;
+        this.file = file;
+        size = width*height;
+        stripeSize = width*stripeRows;
+        int stripes = (height + stripeRows - 1) / stripeRows;
+        this.stripes = stripes;
+        locks = new Object[stripes];
+        for (int s = 0; s < stripes; s++) {
+            locks[s] = new Object();
+        }
+        scratch = ThreadLocal.withInitial(() -> new Scratch(stripes));
+    }
+
+    /**
+     * A striped accumulator whose histograms live in a memory mapped scratch file that gets deleted when the JVM exits.
+     * A single mapping can't be over 2 GB, so neither can a bucket.
+     */
+    public static StripedAccumulator mapped(int buckets, int width, int height, File dir) throws IOException {
+        if (4L * width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("a mapped histogram of " + width + "x" + height
+                    + " is over 2 GB, render it in bands with tile.rows");
+        }
+        dir.mkdirs();
+        File file = File.createTempFile("histogram", ".live", dir);
+        file.deleteOnExit();
+
+        long bytes = 4L * width * height;
+        IntBuffer[] vals = new IntBuffer[buckets];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(bytes * buckets);
+            for (int b = 0; b < buckets; b++) {
+                // the mapping stays valid after the channel is closed
+                vals[b] = channel.map(FileChannel.MapMode.READ_WRITE, b * bytes, bytes).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        }
+        return new StripedAccumulator(vals, file, width, height);
+    }
+
+    private static IntBuffer[] heap(int buckets, int size) {
+        IntBuffer[] vals = new IntBuffer[buckets];
+        for (int b = 0; b < buckets; b++) {
+            vals[b] = IntBuffer.wrap(new int[size]);
+        }
+        return vals;
+    }
+
+    private static class Scratch {
+        // start of every stripe in sorted, with one extra slot at the end
+        final int[] starts;
+        int[] sorted = new int[0];
+
+        Scratch(int stripes) {
+            starts = new int[stripes+1];
+        }
+    }
+
+    @Override
+    public void add(int bucket, int[] orbit, int length, int weight) {
+        Scratch s = scratch.get();
+        int[] starts = s.starts;
+        if (s.sorted.length < length) {
+            s.sorted = new int[length];
+        }
+        int[] sorted = s.sorted;
+
+        // counting sort by stripe
+        Arrays.fill(starts, 0);
+        for (int i = 0; i < length; i++) {
+            starts[orbit[i] / stripeSize + 1]++;
+        }
+        for (int i = 1; i <= stripes; i++) {
+            starts[i] += starts[i-1];
+        }
+        for (int i = 0; i < length; i++) {
+            int v = orbit[i];
+            sorted[starts[v / stripeSize]++] = v;
+        }
+        // starts[i] is now the end of stripe i, which is where stripe i+1 starts
+
+        IntBuffer v = vals[bucket];
+        int from = 0;
+        for (int i = 0; i < stripes; i++) {
+            int to = starts[i];
+            if (to > from) {
+                synchronized (locks[i]) {
+                    for (int j = from; j < to; j++) {
+                        int k = sorted[j];
+                        v.put(k, v.get(k) + weight);
+                    }
+                }
+            }
+            from = to;
+        }
+    }
+
+    @Override
+    public void snapshot(int bucket, int[] target) {
+        IntBuffer v = vals[bucket];
+        if (v == null) {
+            return;
+        }
+        for (int j = 0; j < target.length; j++) {
+            target[j] += v.get(j);
+        }
+    }
+
+    @Override
+    public void drain(int bucket, final IntBuffer target, ForkJoinPool pool) {
+        final IntBuffer v = vals[bucket];
+        Parallel.range(pool, 0, size, 1<<16, (from, to) -> {
+            for (int j = from; j < to; j++) {
+                target.put(j, target.get(j) + v.get(j));
+                v.put(j, 0);
+            }
+        });
+    }
+
+    @Override
+    public int[][] reduce(ForkJoinPool pool) {
+        // joining the render tasks already made every increment visible to us
+        int[][] out = new int[vals.length][];
+        for (int b = 0; b < vals.length; b++) {
+            if (vals[b].hasArray()) {
+                out[b] = vals[b].array();
+            } else {
+                out[b] = new int[size];
+                vals[b].get(out[b], 0, size);
+            }
+            vals[b] = null;
+        }
+        close();
+        return out;
+    }
+
+    /**
+     * Drops the histograms and deletes the scratch file. There's no portable way to unmap a buffer before Java 9, the
+     * mapping goes away once the buffers get collected, the file is gone from the directory right away.
+     */
+    @Override
+    public void close() {
+        Arrays.fill(vals, null);
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
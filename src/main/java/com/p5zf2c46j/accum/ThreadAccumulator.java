@@ -0,0 +1,121 @@
+package com.p5zf2c46j.accum;
+
+import com.p5zf2c46j.util.Parallel;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Every thread gets its own histograms, so adding is just a plain increment. The reduction sums them up in parallel,
+ * each task taking a range of pixels across all the threads.
+ */
+public class ThreadAccumulator implements Accumulator {
+    private final int buckets;
+    private final int size;
+
+    // pool threads outlive us, so the thread locals only hold a holder which gets emptied in reduce
+    private final List<Holder> all = new ArrayList<>();
+    private final ThreadLocal<Holder> local = new ThreadLocal<Holder>() {
+        @Override
+        protected Holder initialValue() {
+            Holder h = new Holder();
+            h.vals = new int[buckets][size];
+            synchronized (all) {
+                all.add(h);
+            }
+            return h;
+        }
+    };
+
+    private static class Holder {
+        int[][] vals;
+    }
+
+    public ThreadAccumulator(int buckets, int size) {
+        this.buckets = buckets;
+        this.size = size;
+    }
+
+    @Override
+    public void add(int bucket, int[] orbit, int length, int weight) {
+        int[] vals = local.get().vals[bucket];
+        for (int i = 0; i < length; i++) {
+            vals[orbit[i]] += weight;
+        }
+    }
+
+    @Override
+    public void snapshot(int bucket, int[] target) {
+        List<Holder> holders;
+        synchronized (all) {
+            holders = new ArrayList<>(all);
+        }
+        for (Holder h : holders) {
+            int[][] vals = h.vals;
+            if (vals == null) {
+                continue;
+            }
+            int[] v = vals[bucket];
+            for (int j = 0; j < target.length; j++) {
+                target[j] += v[j];
+            }
+        }
+    }
+
+    @Override
+    public void drain(final int bucket, final IntBuffer target, ForkJoinPool pool) {
+        Parallel.range(pool, 0, size, 1<<16, (from, to) -> {
+            for (Holder h : all) {
+                int[] v = h.vals[bucket];
+                for (int j = from; j < to; j++) {
+                    target.put(j, target.get(j) + v[j]);
+                    v[j] = 0;
+                }
+            }
+        });
+    }
+
+    @Override
+    public int[][] reduce(ForkJoinPool pool) {
+        if (all.isEmpty()) {
+            return new int[buckets][size];
+        }
+
+        // everything gets summed into the first thread's histograms
+        final int[][] dst = all.get(0).vals;
+        final List<int[][]> rest = new ArrayList<>();
+        for (Holder h : all.subList(1, all.size())) {
+            rest.add(h.vals);
+        }
+
+        Parallel.range(pool, 0, size, 1<<16, (from, to) -> {
+            for (int b = 0; b < buckets; b++) {
+                int[] d = dst[b];
+                for (int[][] src : rest) {
+                    int[] s = src[b];
+                    for (int j = from; j < to; j++) {
+                        d[j] += s[j];
+                    }
+                }
+            }
+        });
+
+        close();
+        return dst;
+    }
+
+    /**
+     * Empties every thread's holder, a render with checkpoints only ever drains us and never gets to reduce.
+     */
+    @Override
+    public void close() {
+        synchronized (all) {
+            for (Holder h : all) {
+                h.vals = null;
+            }
+            all.clear();
+        }
+    }
+}
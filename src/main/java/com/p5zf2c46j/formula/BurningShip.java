@@ -0,0 +1,20 @@
+package com.p5zf2c46j.formula;
+
+// (|x| + i|y|)^2 + c
+public final class BurningShip implements Formula {
+
+    @Override
+    public String name() {
+        return "burningship";
+    }
+
+    @Override
+    public double nextX(double x, double y, double a) {
+        return x*x - y*y + a;
+    }
+
+    @Override
+    public double nextY(double x, double y, double b) {
+        return Math.abs(2*x*y) + b;
+    }
+}
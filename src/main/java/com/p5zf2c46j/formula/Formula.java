@@ -0,0 +1,96 @@
+package com.p5zf2c46j.formula;
+
+/**
+ * One step of an escape time fractal, split into the real and imaginary part so everything stays in primitive doubles.
+ * Only one implementation should get used per run, that way the calls in OrbitEngine stay monomorphic and the JIT
+ * inlines them into the loop like they were written there by hand.
+ */
+public interface Formula {
+
+    /**
+     * Used for file names and to tell cached interior masks apart.
+     */
+    String name();
+
+    /**
+     * @return the real part of the next z for z = (x, y) and c = (a, b)
+     */
+    double nextX(double x, double y, double a);
+
+    /**
+     * @return the imaginary part of the next z for z = (x, y) and c = (a, b)
+     */
+    double nextY(double x, double y, double b);
+
+    /**
+     * Squared distance from the origin after which an orbit counts as escaped.
+     */
+    default double bailout() {
+        return 256;
+    }
+
+    /**
+     * A quick test for starting points that are known to never escape, doesn't have to catch all of them.
+     */
+    default boolean interior(double a, double b) {
+        return false;
+    }
+
+    /**
+     * Whether iterating the conjugate of a starting point gives the conjugate of its orbit, which makes every image of
+     * a view centered on the real axis mirror symmetric. Only half of such a view has to be sampled.
+     */
+    default boolean conjugateSymmetric() {
+        return false;
+    }
+
+    /**
+     * The same formula with a different bailout. Only use the wrapped one for the whole run so the calls stay
+     * monomorphic.
+     */
+    static Formula withBailout(Formula formula, double bailout) {
+        return new Formula() {
+            @Override
+            public String name() {
+                return formula.name();
+            }
+
+            @Override
+            public double nextX(double x, double y, double a) {
+                return formula.nextX(x, y, a);
+            }
+
+            @Override
+            public double nextY(double x, double y, double b) {
+                return formula.nextY(x, y, b);
+            }
+
+            @Override
+            public double bailout() {
+                return bailout;
+            }
+
+            @Override
+            public boolean interior(double a, double b) {
+                return formula.interior(a, b);
+            }
+
+            @Override
+            public boolean conjugateSymmetric() {
+                return formula.conjugateSymmetric();
+            }
+        };
+    }
+
+    static Formula forName(String name) {
+        switch (name.toLowerCase()) {
+            case "mandelbrot": return new Mandelbrot();
+            case "mceltic": return new Mceltic();
+            case "burningship": return new BurningShip();
+            case "tricorn": return new Tricorn();
+            case "multibrot3": return new Multibrot3();
+            case "multibrot4": return new Multibrot4();
+            default: throw new IllegalArgumentException("Unknown formula: " + name);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.p5zf2c46j.formula;
+
+// z^2 + c
+public final class Mandelbrot implements Formula {
+
+    @Override
+    public String name() {
+        return "mandelbrot";
+    }
+
+    @Override
+    public double nextX(double x, double y, double a) {
+        return x*x - y*y + a;
+    }
+
+    @Override
+    public double nextY(double x, double y, double b) {
+        return 2*x*y + b;
+    }
+
+    /**
+     * @return true if (a, b) is inside the main cardioid or the period 2 bulb
+     */
+    @Override
+    public boolean interior(double a, double b) {
+        double x = a - 0.25;
+        double y2 = b*b;
+        double q = x*x + y2;
+        if (q * (q + x) <= 0.25 * y2) {
+            return true;
+        }
+        double x1 = a + 1;
+        return x1*x1 + y2 <= 0.0625;
+    }
+
+    @Override
+    public boolean conjugateSymmetric() {
+        return true;
+    }
+}
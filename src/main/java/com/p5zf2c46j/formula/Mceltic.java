@@ -0,0 +1,25 @@
+package com.p5zf2c46j.formula;
+
+// z^2 with the absolute value of the real part, + c
+public final class Mceltic implements Formula {
+
+    @Override
+    public String name() {
+        return "mceltic";
+    }
+
+    @Override
+    public double nextX(double x, double y, double a) {
+        return Math.abs(x*x - y*y) + a;
+    }
+
+    @Override
+    public double nextY(double x, double y, double b) {
+        return 2*x*y + b;
+    }
+
+    @Override
+    public boolean conjugateSymmetric() {
+        return true;
+    }
+}
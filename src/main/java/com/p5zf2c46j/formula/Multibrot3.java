@@ -0,0 +1,25 @@
+package com.p5zf2c46j.formula;
+
+// z^3 + c
+public final class Multibrot3 implements Formula {
+
+    @Override
+    public String name() {
+        return "multibrot3";
+    }
+
+    @Override
+    public double nextX(double x, double y, double a) {
+        return x*(x*x - 3*y*y) + a;
+    }
+
+    @Override
+    public double nextY(double x, double y, double b) {
+        return y*(3*x*x - y*y) + b;
+    }
+
+    @Override
+    public boolean conjugateSymmetric() {
+        return true;
+    }
+}
@@ -0,0 +1,26 @@
+package com.p5zf2c46j.formula;
+
+// z^4 + c
+public final class Multibrot4 implements Formula {
+
+    @Override
+    public String name() {
+        return "multibrot4";
+    }
+
+    @Override
+    public double nextX(double x, double y, double a) {
+        double xx = x*x, yy = y*y;
+        return xx*xx - 6*xx*yy + yy*yy + a;
+    }
+
+    @Override
+    public double nextY(double x, double y, double b) {
+        return 4*x*y*(x*x - y*y) + b;
+    }
+
+    @Override
+    public boolean conjugateSymmetric() {
+        return true;
+    }
+}
@@ -0,0 +1,25 @@
+package com.p5zf2c46j.formula;
+
+// conj(z)^2 + c
+public final class Tricorn implements Formula {
+
+    @Override
+    public String name() {
+        return "tricorn";
+    }
+
+    @Override
+    public double nextX(double x, double y, double a) {
+        return x*x - y*y + a;
+    }
+
+    @Override
+    public double nextY(double x, double y, double b) {
+        return -2*x*y + b;
+    }
+
+    @Override
+    public boolean conjugateSymmetric() {
+        return true;
+    }
+}
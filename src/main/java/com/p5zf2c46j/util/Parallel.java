@@ -0,0 +1,41 @@
+package com.p5zf2c46j.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class Parallel {
+
+    public interface RangeBody {
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs body over [from, to) on the given pool, split into chunks of at most grain elements.
+     */
+    public static void range(ForkJoinPool pool, int from, int to, int grain, RangeBody body) {
+        pool.invoke(new RangeTask(from, to, Math.max(1, grain), body));
+    }
+
+    @SuppressWarnings("serial")
+    private static class RangeTask extends RecursiveAction {
+        private final int from, to, grain;
+        private final RangeBody body;
+
+        RangeTask(int from, int to, int grain, RangeBody body) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, mid, grain, body), new RangeTask(mid, to, grain, body));
+            }
+        }
+    }
+}
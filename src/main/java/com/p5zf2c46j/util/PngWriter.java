@@ -0,0 +1,333 @@
+package com.p5zf2c46j.util;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 16 bit grayscale and RGB images as PNGs, compressing strips of rows in parallel. Every strip gets deflated on
+ * its own and flushed to a byte boundary so the strips can just be glued together into one zlib stream, the way pigz
+ * does it. The checksums of the strips get combined at the end, so nothing is ever done twice.
+ *
+ * Rows can also be handed over a batch at a time, so an image that doesn't fit in memory can be written while it's
+ * being made. Anything that isn't a plain 16 bit image goes to ImageIO.
+ */
+public class PngWriter {
+    private static final byte[] signature = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    // uncompressed bytes per strip, small enough to give every thread a few strips
+    private static final int stripBytes = 1<<20;
+
+    private final DataOutputStream data;
+    private final int width, height, channels, level;
+    private final ForkJoinPool pool;
+    // the last row written, the filters of the next batch's first row need it
+    private byte[] above;
+    private int written;
+    private long adler = 1;
+
+    /**
+     * Starts a 16 bit PNG with 1 (gray) or 3 (RGB) channels, the rows have to follow with rows and finish has to be
+     * called at the end.
+     *
+     * @param level deflate level from 0 (fastest) to 9 (smallest)
+     */
+    public PngWriter(OutputStream out, int width, int height, int channels, int level, ForkJoinPool pool) throws IOException {
+        if (channels != 1 && channels != 3) {
+            throw new IllegalArgumentException("only gray and RGB, not " + channels + " channels");
+        }
+        this.data = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.level = level;
+        this.pool = pool;
+
+        data.write(signature);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 16;
+        header[9] = (byte) (channels == 1 ? 0 : 2);
+        chunk(data, "IHDR", header, header.length);
+    }
+
+    public static void write(BufferedImage image, File file, int level, ForkJoinPool pool) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1<<16)) {
+            write(image, out, level, pool);
+        }
+    }
+
+    /**
+     * @param level deflate level from 0 (fastest) to 9 (smallest)
+     */
+    public static void write(BufferedImage image, OutputStream out, int level, ForkJoinPool pool) throws IOException {
+        Raster raster = image.getRaster();
+        int channels = raster.getNumBands();
+        if (!(raster.getDataBuffer() instanceof DataBufferUShort) || (channels != 1 && channels != 3)
+                || raster.getNumDataElements() != channels || image.getColorModel().hasAlpha()) {
+            ImageIO.write(image, "png", out);
+            return;
+        }
+
+        short[] samples = ((DataBufferUShort) raster.getDataBuffer()).getData();
+        PngWriter png = new PngWriter(out, image.getWidth(), image.getHeight(), channels, level, pool);
+        png.rows(samples, image.getHeight());
+        png.finish();
+    }
+
+    /**
+     * Compresses and writes the next count rows of the image, samples starts with the first of them.
+     */
+    public void rows(short[] samples, int count) throws IOException {
+        if (written + count > height) {
+            throw new IllegalStateException("the image only has " + height + " rows");
+        }
+        int rowSamples = width * channels;
+        int rowsPerStrip = Math.max(1, stripBytes / (1 + 2*rowSamples));
+        int strips = (count + rowsPerStrip - 1) / rowsPerStrip;
+        byte[] before = above;
+
+        byte[][] compressed = new byte[strips][];
+        long[] adlers = new long[strips];
+        long[] lengths = new long[strips];
+        Parallel.range(pool, 0, strips, 1, (from, to) -> {
+            for (int s = from; s < to; s++) {
+                int y0 = s * rowsPerStrip, y1 = Math.min(count, y0 + rowsPerStrip);
+                byte[] filtered = filter(samples, rowSamples, channels, y0, y1, before);
+
+                Adler32 adler = new Adler32();
+                adler.update(filtered, 0, filtered.length);
+                adlers[s] = adler.getValue();
+                lengths[s] = filtered.length;
+                compressed[s] = deflate(filtered, level, false);
+            }
+        });
+
+        // the zlib header goes in front of the very first strip, the checksum comes with finish
+        for (int s = 0; s < strips; s++) {
+            adler = combine(adler, adlers[s], lengths[s]);
+            byte[] body = compressed[s];
+            if (written == 0 && s == 0) {
+                byte[] idat = new byte[body.length + 2];
+                idat[0] = 0x78;
+                idat[1] = zlibFlags(level);
+                System.arraycopy(body, 0, idat, 2, body.length);
+                body = idat;
+            }
+            chunk(data, "IDAT", body, body.length);
+        }
+
+        if (count > 0) {
+            above = new byte[2 * rowSamples];
+            bytes(samples, (count-1) * rowSamples, rowSamples, above);
+        }
+        written += count;
+    }
+
+    /**
+     * Ends the image, every row has to be written by now. Doesn't close the stream.
+     */
+    public void finish() throws IOException {
+        if (written != height) {
+            throw new IllegalStateException("only " + written + " of " + height + " rows were written");
+        }
+        // an empty final block ends the deflate stream after all the flushed strips
+        byte[] last = deflate(new byte[0], level, true);
+        byte[] idat = new byte[last.length + 4];
+        System.arraycopy(last, 0, idat, 0, last.length);
+        putInt(idat, last.length, (int) adler);
+        chunk(data, "IDAT", idat, idat.length);
+
+        chunk(data, "IEND", new byte[0], 0);
+        data.flush();
+    }
+
+    /**
+     * Filters rows [y0, y1) with whichever of the five PNG filters gives the smallest sum of absolute values for that
+     * row, same heuristic as libpng. before is the row above row 0 in PNG byte order, or null if there is none.
+     */
+    private static byte[] filter(short[] samples, int rowSamples, int channels, int y0, int y1, byte[] before) {
+        int rowBytes = 2 * rowSamples;
+        int bpp = 2 * channels;
+        byte[] out = new byte[(y1 - y0) * (rowBytes + 1)];
+        byte[] prev = new byte[rowBytes];
+        byte[] cur = new byte[rowBytes];
+        byte[][] candidates = new byte[5][rowBytes];
+
+        if (y0 > 0) {
+            bytes(samples, (y0-1) * rowSamples, rowSamples, prev);
+        } else if (before != null) {
+            System.arraycopy(before, 0, prev, 0, rowBytes);
+        }
+        for (int y = y0; y < y1; y++) {
+            bytes(samples, y * rowSamples, rowSamples, cur);
+
+            int best = 0;
+            long bestSum = Long.MAX_VALUE;
+            for (int f = 0; f < 5; f++) {
+                long sum = apply(f, cur, prev, bpp, candidates[f]);
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = f;
+                }
+            }
+
+            int pos = (y - y0) * (rowBytes + 1);
+            out[pos] = (byte) best;
+            System.arraycopy(candidates[best], 0, out, pos + 1, rowBytes);
+
+            byte[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return out;
+    }
+
+    /**
+     * Runs filter f over a row, one loop per filter so none of them has to branch on which one it is.
+     *
+     * @return the sum of the absolute values of the filtered bytes
+     */
+    private static long apply(int f, byte[] cur, byte[] prev, int bpp, byte[] out) {
+        int n = cur.length;
+        long sum = 0;
+        switch (f) {
+            case 0:
+                for (int i = 0; i < n; i++) {
+                    out[i] = cur[i];
+                }
+                break;
+            case 1:
+                for (int i = 0; i < bpp; i++) {
+                    out[i] = cur[i];
+                }
+                for (int i = bpp; i < n; i++) {
+                    out[i] = (byte) (cur[i] - cur[i - bpp]);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    out[i] = (byte) (cur[i] - prev[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < bpp; i++) {
+                    out[i] = (byte) (cur[i] - ((prev[i] & 0xFF) >>> 1));
+                }
+                for (int i = bpp; i < n; i++) {
+                    out[i] = (byte) (cur[i] - (((cur[i - bpp] & 0xFF) + (prev[i] & 0xFF)) >>> 1));
+                }
+                break;
+            default:
+                for (int i = 0; i < bpp; i++) {
+                    out[i] = (byte) (cur[i] - prev[i]);
+                }
+                for (int i = bpp; i < n; i++) {
+                    out[i] = (byte) (cur[i] - paeth(cur[i - bpp] & 0xFF, prev[i] & 0xFF, prev[i - bpp] & 0xFF));
+                }
+                break;
+        }
+        for (int i = 0; i < n; i++) {
+            sum += Math.abs(out[i]);
+        }
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+
+    // png samples are big endian
+    private static void bytes(short[] samples, int from, int n, byte[] out) {
+        for (int i = 0; i < n; i++) {
+            short v = samples[from + i];
+            out[2*i] = (byte) (v >>> 8);
+            out[2*i + 1] = (byte) v;
+        }
+    }
+
+    /**
+     * Raw deflate of one strip. Strips end on a sync flush instead of a final block, which is what lets them be
+     * concatenated, and the final block comes on its own at the end.
+     */
+    private static byte[] deflate(byte[] in, int level, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setInput(in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(in.length / 2 + 64);
+        byte[] buf = new byte[1<<16];
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        } else {
+            int n;
+            do {
+                n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                out.write(buf, 0, n);
+            } while (n == buf.length);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * The adler32 of two buffers glued together from their own checksums and the second one's length, from zlib's
+     * adler32_combine.
+     */
+    private static long combine(long adler1, long adler2, long len2) {
+        final long base = 65521;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    // the second zlib header byte, it has to make the header a multiple of 31 and says how hard we compressed
+    private static byte zlibFlags(int level) {
+        if (level <= 1) return 0x01;
+        if (level <= 5) return 0x5E;
+        if (level == 6 || level < 0) return (byte) 0x9C;
+        return (byte) 0xDA;
+    }
+
+    private static void chunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] t = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(t);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] b, int pos, int v) {
+        b[pos] = (byte) (v >>> 24);
+        b[pos+1] = (byte) (v >>> 16);
+        b[pos+2] = (byte) (v >>> 8);
+        b[pos+3] = (byte) v;
+    }
+}
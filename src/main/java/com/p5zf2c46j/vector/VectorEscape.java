@@ -0,0 +1,312 @@
+package com.p5zf2c46j.vector;
+
+import com.p5zf2c46j.BatchEscape;
+import com.p5zf2c46j.InteriorMask;
+import com.p5zf2c46j.OrbitEngine;
+import com.p5zf2c46j.formula.Formula;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * OrbitEngine.escape for as many samples at a time as the cpu has lanes for doubles. Every lane iterates a sample of
+ * its own and as soon as one is done (escaped, periodic or at maxIter) the next sample of the column takes its place,
+ * so the lanes don't wait for the slowest orbit of a batch. Once the column runs out and most lanes are idle, the few
+ * orbits left get finished one at a time.
+ *
+ * The results are exactly OrbitEngine.escape's: every lane does the same double operations in the same order, the
+ * vector api doesn't fuse them any more than javac does. Needs Java 17 and --add-modules jdk.incubator.vector, which
+ * is why only the vector profile in pom.xml builds this and the renderer gets it through BatchEscape.vector.
+ *
+ * There's a loop per cycle check and the formula is masks and constants rather than a branch. Once a jvm has been
+ * through more than one side of a branch in the loop, the jit boxes the vectors coming out of it and the loop ends up
+ * several times slower than the scalar one.
+ */
+public final class VectorEscape implements BatchEscape {
+    private static final VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+
+    private final Formula formula;
+    // the step is x*x - y*y + a, two*x*y + b, with the absolute value of either part taken before c gets added
+    private final boolean absX, absY;
+    private final double two;
+    private final double bailout;
+    private final int maxIter;
+    private final InteriorMask mask;
+    private final boolean brent;
+    private final double epsilon;
+
+    private final int lanes = species.length();
+    // the sample every lane is on, -1 once the column ran out
+    private final int[] sample = new int[lanes];
+    // c of every lane, and everything else a lane has when the last few get finished one at a time: z, the iterations
+    // so far, the last 3 values of z (or the checkpoint and when it moves next with BRENT)
+    private final double[] la = new double[lanes], lb = new double[lanes], lx = new double[lanes], ly = new double[lanes],
+            lk = new double[lanes];
+    private final double[] l0x = new double[lanes], l0y = new double[lanes], l1x = new double[lanes], l1y = new double[lanes],
+            l2x = new double[lanes], l2y = new double[lanes];
+    // the sample the next lane that's done gets, and how many lanes are on one
+    private int next, live;
+
+    private VectorEscape(Formula formula, boolean absX, boolean absY, double two, int maxIter, InteriorMask mask,
+                         OrbitEngine.Cycles cycles, double epsilon) {
+        this.formula = formula;
+        this.absX = absX;
+        this.absY = absY;
+        this.two = two;
+        this.bailout = formula.bailout();
+        this.maxIter = maxIter;
+        this.mask = mask;
+        this.brent = cycles == OrbitEngine.Cycles.BRENT;
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * See BatchEscape.vector, which calls this.
+     */
+    public static BatchEscape create(Formula formula, int maxIter, InteriorMask mask, OrbitEngine.Cycles cycles, double epsilon) {
+        // a single lane is just a slower scalar loop
+        if (species.length() < 2) {
+            return null;
+        }
+        // the multibrots don't fit the step, they keep the scalar loop
+        switch (formula.name()) {
+            case "mandelbrot": return new VectorEscape(formula, false, false, 2, maxIter, mask, cycles, epsilon);
+            case "mceltic": return new VectorEscape(formula, true, false, 2, maxIter, mask, cycles, epsilon);
+            case "burningship": return new VectorEscape(formula, false, true, 2, maxIter, mask, cycles, epsilon);
+            case "tricorn": return new VectorEscape(formula, false, false, -2, maxIter, mask, cycles, epsilon);
+            default: return null;
+        }
+    }
+
+    @Override
+    public void escape(double[] as, double[] bs, int n, int[] escapes, int[] steps) {
+        next = 0;
+        live = 0;
+        for (int l = 0; l < lanes; l++) {
+            take(l, as, bs, n, escapes, steps);
+        }
+        if (brent) {
+            brent(as, bs, n, escapes, steps);
+        } else {
+            ring(as, bs, n, escapes, steps);
+        }
+    }
+
+    private void ring(double[] as, double[] bs, int n, int[] escapes, int[] steps) {
+        DoubleVector a = DoubleVector.fromArray(species, la, 0), b = DoubleVector.fromArray(species, lb, 0);
+        DoubleVector zx = DoubleVector.zero(species), zy = zx, k = zx;
+        DoubleVector nan = DoubleVector.broadcast(species, Double.NaN);
+        DoubleVector p0x = nan, p0y = nan, p1x = nan, p1y = nan, p2x = nan, p2y = nan;
+        VectorMask<Double> absX = species.maskAll(this.absX), absY = species.maskAll(this.absY);
+        DoubleVector twoX = DoubleVector.broadcast(species, two);
+
+        while (live > 0) {
+            if (next >= n && 2*live <= lanes) {
+                // what's left would mostly be iterating idle lanes
+                p0x.intoArray(l0x, 0);
+                p0y.intoArray(l0y, 0);
+                p1x.intoArray(l1x, 0);
+                p1y.intoArray(l1y, 0);
+                p2x.intoArray(l2x, 0);
+                p2y.intoArray(l2y, 0);
+                zx.intoArray(lx, 0);
+                zy.intoArray(ly, 0);
+                k.intoArray(lk, 0);
+                finish(escapes, steps);
+                return;
+            }
+
+            DoubleVector nx = zx.mul(zx).sub(zy.mul(zy));
+            DoubleVector ny = zx.mul(twoX).mul(zy);
+            nx = nx.blend(nx.abs(), absX).add(a);
+            ny = ny.blend(ny.abs(), absY).add(b);
+
+            VectorMask<Double> escaped = nx.mul(nx).add(ny.mul(ny)).compare(VectorOperators.GT, bailout);
+            VectorMask<Double> periodic = near(nx, ny, p0x, p0y, 1E-30).or(near(nx, ny, p1x, p1y, 1E-30)).or(near(nx, ny, p2x, p2y, 1E-30));
+            // the order doesn't matter, z gets compared to all 3
+            p2x = p1x;
+            p2y = p1y;
+            p1x = p0x;
+            p1y = p0y;
+            p0x = nx;
+            p0y = ny;
+            zx = nx;
+            zy = ny;
+            k = k.add(1);
+
+            VectorMask<Double> done = escaped.or(periodic).or(k.compare(VectorOperators.EQ, maxIter));
+            if (!done.anyTrue()) {
+                continue;
+            }
+            k.intoArray(lk, 0);
+            retire(done.toLong(), escaped.toLong(), as, bs, n, escapes, steps);
+            // the lanes that took a new sample start over, the idle ones too which doesn't matter
+            a = DoubleVector.fromArray(species, la, 0);
+            b = DoubleVector.fromArray(species, lb, 0);
+            zx = zx.blend(0.0, done);
+            zy = zy.blend(0.0, done);
+            k = k.blend(0.0, done);
+            p0x = p0x.blend(Double.NaN, done);
+            p0y = p0y.blend(Double.NaN, done);
+            p1x = p1x.blend(Double.NaN, done);
+            p1y = p1y.blend(Double.NaN, done);
+            p2x = p2x.blend(Double.NaN, done);
+            p2y = p2y.blend(Double.NaN, done);
+        }
+    }
+
+    // the same with Brent's checkpoint, which the tail gets in l0x, l0y and when it moves next in l1x
+    private void brent(double[] as, double[] bs, int n, int[] escapes, int[] steps) {
+        DoubleVector a = DoubleVector.fromArray(species, la, 0), b = DoubleVector.fromArray(species, lb, 0);
+        DoubleVector zx = DoubleVector.zero(species), zy = zx, k = zx;
+        DoubleVector cx = DoubleVector.broadcast(species, Double.NaN), cy = cx, check = DoubleVector.broadcast(species, 1);
+        VectorMask<Double> absX = species.maskAll(this.absX), absY = species.maskAll(this.absY);
+        DoubleVector twoX = DoubleVector.broadcast(species, two);
+
+        while (live > 0) {
+            if (next >= n && 2*live <= lanes) {
+                cx.intoArray(l0x, 0);
+                cy.intoArray(l0y, 0);
+                check.intoArray(l1x, 0);
+                zx.intoArray(lx, 0);
+                zy.intoArray(ly, 0);
+                k.intoArray(lk, 0);
+                finish(escapes, steps);
+                return;
+            }
+
+            DoubleVector nx = zx.mul(zx).sub(zy.mul(zy));
+            DoubleVector ny = zx.mul(twoX).mul(zy);
+            nx = nx.blend(nx.abs(), absX).add(a);
+            ny = ny.blend(ny.abs(), absY).add(b);
+
+            VectorMask<Double> escaped = nx.mul(nx).add(ny.mul(ny)).compare(VectorOperators.GT, bailout);
+            VectorMask<Double> periodic = near(nx, ny, cx, cy, epsilon);
+            zx = nx;
+            zy = ny;
+            k = k.add(1);
+            VectorMask<Double> move = k.compare(VectorOperators.EQ, check);
+            cx = cx.blend(nx, move);
+            cy = cy.blend(ny, move);
+            check = check.blend(check.mul(2), move);
+
+            VectorMask<Double> done = escaped.or(periodic).or(k.compare(VectorOperators.EQ, maxIter));
+            if (!done.anyTrue()) {
+                continue;
+            }
+            k.intoArray(lk, 0);
+            retire(done.toLong(), escaped.toLong(), as, bs, n, escapes, steps);
+            a = DoubleVector.fromArray(species, la, 0);
+            b = DoubleVector.fromArray(species, lb, 0);
+            zx = zx.blend(0.0, done);
+            zy = zy.blend(0.0, done);
+            k = k.blend(0.0, done);
+            cx = cx.blend(Double.NaN, done);
+            cy = cy.blend(Double.NaN, done);
+            check = check.blend(1.0, done);
+        }
+    }
+
+    /**
+     * Puts the next sample that has to be iterated at all into lane l, or -1 if there is none.
+     */
+    private void take(int l, double[] as, double[] bs, int n, int[] escapes, int[] steps) {
+        for (; next < n; next++) {
+            double a = as[next], b = bs[next];
+            if (formula.interior(a, b) || mask != null && mask.contains(a, b)) {
+                escapes[next] = -1;
+                steps[next] = 0;
+                continue;
+            }
+            sample[l] = next++;
+            la[l] = a;
+            lb[l] = b;
+            live++;
+            return;
+        }
+        sample[l] = -1;
+    }
+
+    /**
+     * Writes down the samples of the lanes that are done, which are after lk iterations, and gives those lanes the
+     * next ones. Vectors only get passed around within a loop, anything that isn't inlined would get them boxed.
+     */
+    private void retire(long done, long escaped, double[] as, double[] bs, int n, int[] escapes, int[] steps) {
+        for (long bits = done; bits != 0; bits &= bits - 1) {
+            int l = Long.numberOfTrailingZeros(bits);
+            int i = sample[l];
+            if (i >= 0) {
+                steps[i] = (int) lk[l];
+                escapes[i] = (escaped >>> l & 1) != 0 ? steps[i] - 1 : -1;
+                live--;
+            }
+            take(l, as, bs, n, escapes, steps);
+        }
+    }
+
+    private static VectorMask<Double> near(DoubleVector x, DoubleVector y, DoubleVector px, DoubleVector py, double epsilon) {
+        DoubleVector dx = x.sub(px), dy = y.sub(py);
+        return dx.mul(dx).add(dy.mul(dy)).compare(VectorOperators.LT, epsilon);
+    }
+
+    /**
+     * The rest of OrbitEngine.escape for the lanes that are still on a sample, from where the loop left them in the lane
+     * arrays.
+     */
+    private void finish(int[] escapes, int[] steps) {
+        for (int l = 0; l < lanes; l++) {
+            if (sample[l] >= 0) {
+                finish(l, escapes, steps);
+            }
+        }
+    }
+
+    private void finish(int l, int[] escapes, int[] steps) {
+        int i = sample[l];
+        double a = la[l], b = lb[l], zx = lx[l], zy = ly[l];
+        double p0x = l0x[l], p0y = l0y[l], p1x = l1x[l], p1y = l1y[l], p2x = l2x[l], p2y = l2y[l];
+        // with BRENT
+        double cx = p0x, cy = p0y;
+        int check = (int) p1x;
+
+        escapes[i] = -1;
+        steps[i] = maxIter;
+        for (int k = (int) lk[l]; k < maxIter; k++) {
+            double nx = formula.nextX(zx, zy, a);
+            double ny = formula.nextY(zx, zy, b);
+
+            if (nx*nx + ny*ny > bailout) {
+                escapes[i] = k;
+                steps[i] = k + 1;
+                return;
+            }
+
+            double dx, dy;
+            if (brent) {
+                dx = nx - cx; dy = ny - cy;
+                if (dx*dx + dy*dy < epsilon) { steps[i] = k + 1; return; }
+                if (k + 1 == check) {
+                    cx = nx;
+                    cy = ny;
+                    check <<= 1;
+                }
+            } else {
+                dx = nx - p0x; dy = ny - p0y;
+                if (dx*dx + dy*dy < 1E-30) { steps[i] = k + 1; return; }
+                dx = nx - p1x; dy = ny - p1y;
+                if (dx*dx + dy*dy < 1E-30) { steps[i] = k + 1; return; }
+                dx = nx - p2x; dy = ny - p2y;
+                if (dx*dx + dy*dy < 1E-30) { steps[i] = k + 1; return; }
+
+                p2x = p1x; p2y = p1y;
+                p1x = p0x; p1y = p0y;
+                p0x = nx; p0y = ny;
+            }
+
+            zx = nx;
+            zy = ny;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.formula.Formula;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+
+public class BatchEscapeTest {
+    private static final int width = 200, height = 200, maxIter = 4096;
+    private static final double xmin = -2, xmax = 0.5, ymin = -1.25, ymax = 1.25;
+    private static final double epsilon = 1e-25;
+
+    /**
+     * The vector kernel has to give every sample exactly what OrbitEngine.escape gives it, whatever the column looks
+     * like: shorter than a vector, full of interior points, or with orbits running to maxIter at the very end.
+     */
+    private static void compare(String name, OrbitEngine.Cycles cycles) {
+        Formula formula = Formula.forName(name);
+        BatchEscape batch = BatchEscape.vector(formula, maxIter, null, cycles, epsilon);
+        // only there when built and run on Java 17 with the vector profile
+        assumeNotNull(batch);
+        OrbitEngine engine = new OrbitEngine(formula, xmin, xmax, ymin, ymax, width, height, maxIter).cycles(cycles, epsilon);
+
+        Random random = new Random(7);
+        double[] as = new double[300], bs = new double[300];
+        int[] escapes = new int[300], steps = new int[300];
+        for (int n : new int[] {0, 1, 3, 17, 300}) {
+            for (int column = 0; column < 20; column++) {
+                double a = xmin + (xmax - xmin) * random.nextDouble();
+                for (int i = 0; i < n; i++) {
+                    as[i] = a;
+                    bs[i] = ymin + (ymax - ymin) * (i + random.nextDouble()) / n;
+                }
+                batch.escape(as, bs, n, escapes, steps);
+                for (int i = 0; i < n; i++) {
+                    String sample = name + " " + cycles + " (" + as[i] + ", " + bs[i] + ")";
+                    assertEquals(sample, engine.escape(as[i], bs[i]), escapes[i]);
+                    assertEquals(sample, engine.steps, steps[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void vectorMatchesEscape() {
+        for (String name : new String[] {"mandelbrot", "mceltic", "burningship", "tricorn"}) {
+            for (OrbitEngine.Cycles cycles : OrbitEngine.Cycles.values()) {
+                compare(name, cycles);
+            }
+        }
+    }
+
+    @Test
+    public void noKernelForTheMultibrots() {
+        assertNull(BatchEscape.vector(Formula.forName("multibrot3"), maxIter, null, OrbitEngine.Cycles.RING, epsilon));
+    }
+}
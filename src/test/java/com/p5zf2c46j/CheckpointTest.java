@@ -0,0 +1,76 @@
+package com.p5zf2c46j;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final int[] maxIters = {64, 256};
+
+    // 5 units per pass, so 10 waves of a 2 thread pool over all the passes
+    private static RenderJob job() {
+        Map<String, String> values = new HashMap<>();
+        values.put("formula", "mandelbrot");
+        values.put("xcenter", "-0.5");
+        values.put("width", "128");
+        values.put("height", "64");
+        values.put("delta", "0.125");
+        values.put("passes", "16");
+        values.put("levels", "64,256");
+        return RenderJob.of(values);
+    }
+
+    @Test
+    public void resumeMatchesUninterrupted() throws Exception {
+        RenderJob job = job();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        Renderer whole = new Renderer(job, maxIters, pool, null);
+        int[][] expected = whole.render(job.passes);
+        pool.shutdown();
+
+        File file = new File(tmp.getRoot(), "test.ckpt");
+        ForkJoinPool doomed = new ForkJoinPool(2);
+        Renderer first = new Renderer(job, maxIters, doomed, null).checkpoint(file, 0);
+        // pulls the pool out from under the render once a quarter of it is done, which is past the first save since
+        // the units of a wave only start once the wave before it got saved
+        Thread killer = new Thread(() -> {
+            while (first.stats().getProgress() < 0.25) {
+                Thread.yield();
+            }
+            doomed.shutdownNow();
+        });
+        killer.start();
+        boolean interrupted = false;
+        try {
+            first.render(job.passes);
+        } catch (CancellationException | RejectedExecutionException e) {
+            interrupted = true;
+        }
+        killer.join();
+        doomed.awaitTermination(1, TimeUnit.MINUTES);
+
+        pool = new ForkJoinPool(2);
+        Renderer resumed = new Renderer(job, maxIters, pool, null).checkpoint(file, 0);
+        int[][] actual = resumed.render(job.passes);
+        pool.shutdown();
+
+        assertArrayEquals(expected, actual);
+        assertTrue("nothing got resumed", resumed.stats().getSamples() < whole.stats().getSamples());
+        if (interrupted) {
+            assertTrue("the resumed render didn't render anything", resumed.stats().getSamples() > 0);
+        }
+    }
+}
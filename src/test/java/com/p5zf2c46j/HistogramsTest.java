@@ -0,0 +1,102 @@
+package com.p5zf2c46j;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistogramsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final int[] maxIters = {64, 512, 4096};
+
+    private static Histograms.Info info(int width, int height) {
+        return new Histograms.Info("mceltic", width, height, -0.125, 0.0, 1.5, 0.05, 4, 123456789012L, maxIters);
+    }
+
+    // mostly small counts with the odd big one, like a real render, plus the extremes the zigzag has to survive
+    private static int[][] buckets(int size, long seed) {
+        Random r = new Random(seed);
+        int[][] buckets = new int[maxIters.length][size];
+        for (int[] bucket : buckets) {
+            for (int j = 0; j < size; j++) {
+                bucket[j] = r.nextInt(10) == 0 ? r.nextInt(Integer.MAX_VALUE) : r.nextInt(50);
+            }
+            bucket[0] = Integer.MAX_VALUE;
+            bucket[1] = 0;
+            bucket[size-1] = Integer.MAX_VALUE;
+        }
+        return buckets;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        // big enough for a couple of chunks of varints
+        int width = 400, height = 300;
+        int[][] buckets = buckets(width*height, 1);
+        File file = new File(tmp.getRoot(), "raw.bdh");
+        Histograms.write(file, info(width, height), buckets);
+
+        Histograms.Data data = Histograms.read(file);
+        assertArrayEquals(buckets, data.buckets);
+        Histograms.Info info = data.info;
+        assertEquals("mceltic", info.formula);
+        assertEquals(width, info.width);
+        assertEquals(height, info.height);
+        assertEquals(-0.125, info.xcenter, 0);
+        assertEquals(0.0, info.ycenter, 0);
+        assertEquals(1.5, info.magn, 0);
+        assertEquals(0.05, info.delta, 0);
+        assertEquals(4, info.passes);
+        assertEquals(123456789012L, info.samples);
+        assertArrayEquals(maxIters, info.maxIters);
+
+        assertEquals(height, Histograms.info(file).height);
+        assertFalse("the temporary file got left behind", new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void add() throws IOException {
+        int[][] a = buckets(1000, 2), b = buckets(1000, 3);
+        for (int[] bucket : a) {
+            bucket[0] = bucket[999] = 7;
+        }
+        File file = new File(tmp.getRoot(), "b.bdh");
+        Histograms.write(file, info(100, 10), b);
+
+        int[][] sum = new int[a.length][];
+        for (int i = 0; i < a.length; i++) {
+            sum[i] = a[i].clone();
+        }
+        Histograms.add(file, sum);
+        for (int i = 0; i < a.length; i++) {
+            for (int j = 0; j < a[i].length; j++) {
+                assertEquals(a[i][j] + b[i][j], sum[i][j]);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void addRejectsOtherShapes() throws IOException {
+        File file = new File(tmp.getRoot(), "small.bdh");
+        Histograms.write(file, info(10, 10), buckets(100, 4));
+        Histograms.add(file, new int[maxIters.length][200]);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFile() throws IOException {
+        File file = new File(tmp.getRoot(), "cut.bdh");
+        Histograms.write(file, info(200, 200), buckets(200*200, 5));
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() / 2);
+        }
+        Histograms.read(file);
+    }
+}
@@ -0,0 +1,118 @@
+package com.p5zf2c46j;
+
+import com.p5zf2c46j.formula.Formula;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class OrbitEngineTest {
+    private static final int width = 200, height = 200, maxIter = 4096;
+    private static final double xmin = -2, xmax = 0.5, ymin = -1.25, ymax = 1.25;
+    // squared, about a millionth of a pixel
+    private static final double epsilon = 1e-25;
+
+    private static OrbitEngine engine(Formula formula, OrbitEngine.Cycles cycles) {
+        return new OrbitEngine(formula, xmin, xmax, ymin, ymax, width, height, maxIter).cycles(cycles, epsilon);
+    }
+
+    /**
+     * Brent's check only ever stops orbits that don't escape, so every escaping orbit has to come out exactly the same
+     * as with the ring, and nothing the ring caught can escape with Brent's.
+     */
+    private static void compare(Formula formula) {
+        OrbitEngine ring = engine(formula, OrbitEngine.Cycles.RING), brent = engine(formula, OrbitEngine.Cycles.BRENT);
+        long ringSteps = 0, brentSteps = 0;
+        for (int j = 0; j < 150; j++) {
+            for (int i = 0; i < 150; i++) {
+                double a = xmin + (xmax - xmin) * (i + 0.5) / 150, b = ymin + (ymax - ymin) * (j + 0.5) / 150;
+                int r = ring.iterate(a, b), e = brent.iterate(a, b);
+                ringSteps += ring.steps;
+                brentSteps += brent.steps;
+
+                assertEquals("escape of (" + a + ", " + b + ")", r, e);
+                if (r >= 0) {
+                    assertEquals(ring.steps, brent.steps);
+                    assertArrayEquals(Arrays.copyOf(ring.orbit, ring.length), Arrays.copyOf(brent.orbit, brent.length));
+                }
+            }
+        }
+        assertTrue(formula.name() + ": brent took " + brentSteps + " steps, the ring " + ringSteps, brentSteps < ringSteps);
+    }
+
+    @Test
+    public void brentMatchesRingOnEscapingOrbits() {
+        compare(Formula.forName("mandelbrot"));
+        compare(Formula.forName("mceltic"));
+        compare(Formula.forName("burningship"));
+    }
+
+    @Test
+    public void brentCatchesLongPeriods() {
+        Formula mandelbrot = Formula.forName("mandelbrot");
+        OrbitEngine ring = engine(mandelbrot, OrbitEngine.Cycles.RING), brent = engine(mandelbrot, OrbitEngine.Cycles.BRENT);
+        // the centers of the period 4 and 5 bulbs, the ring only looks 3 values back
+        double[][] points = {{-1.3107, 0}, {-0.5044, 0.5629}, {0.3795, 0.3349}};
+        for (double[] p : points) {
+            assertEquals(-1, ring.iterate(p[0], p[1]));
+            assertEquals("the ring shouldn't catch (" + p[0] + ", " + p[1] + ")", maxIter, ring.steps);
+            assertEquals(-1, brent.iterate(p[0], p[1]));
+            assertTrue("brent took " + brent.steps + " steps for (" + p[0] + ", " + p[1] + ")", brent.steps < maxIter / 8);
+        }
+    }
+
+    @Test
+    public void ringCatchesShortPeriods() {
+        Formula mandelbrot = Formula.forName("mandelbrot");
+        OrbitEngine ring = engine(mandelbrot, OrbitEngine.Cycles.RING);
+        // the center of the period 3 bulb, which interior doesn't know about
+        assertEquals(-1, ring.iterate(-0.1226, 0.7449));
+        assertTrue(ring.steps < maxIter);
+    }
+
+    @Test
+    public void escapeMatchesIterate() {
+        Formula mceltic = Formula.forName("mceltic");
+        for (OrbitEngine.Cycles cycles : OrbitEngine.Cycles.values()) {
+            OrbitEngine engine = engine(mceltic, cycles);
+            for (int j = 0; j < 60; j++) {
+                for (int i = 0; i < 60; i++) {
+                    double a = xmin + (xmax - xmin) * i / 60, b = ymin + (ymax - ymin) * j / 60;
+                    int escape = engine.escape(a, b);
+                    int steps = engine.steps;
+                    assertEquals(escape, engine.iterate(a, b));
+                    assertEquals(steps, engine.steps);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mirrorAddsTheFlippedPoints() {
+        Formula mandelbrot = Formula.forName("mandelbrot");
+        OrbitEngine plain = new OrbitEngine(mandelbrot, xmin, xmax, ymin, ymax, width, height, maxIter);
+        OrbitEngine mirror = new OrbitEngine(mandelbrot, xmin, xmax, ymin, ymax, width, height, maxIter).mirror(true);
+        // a band of the upper rows, which has to get the mirror images of the points in the lower rows
+        OrbitEngine band = new OrbitEngine(mandelbrot, xmin, xmax, ymin, ymax, width, height, maxIter, null, 0, 50).mirror(true);
+        assertTrue(plain.iterate(-0.75, 0.1) >= 0);
+        mirror.iterate(-0.75, 0.1);
+        band.iterate(-0.75, 0.1);
+
+        int[] expected = new int[2 * plain.length], inBand = new int[2 * plain.length];
+        int n = 0;
+        for (int k = 0; k < plain.length; k++) {
+            int x = plain.orbit[k] % width, y = plain.orbit[k] / width;
+            expected[2*k] = plain.orbit[k];
+            expected[2*k + 1] = x + width * (height - 1 - y);
+            for (int yy : new int[] {y, height - 1 - y}) {
+                if (yy < 50) {
+                    inBand[n++] = x + width * yy;
+                }
+            }
+        }
+        assertArrayEquals(expected, Arrays.copyOf(mirror.orbit, mirror.length));
+        assertEquals(plain.length, mirror.mirrored);
+        assertArrayEquals(Arrays.copyOf(inBand, n), Arrays.copyOf(band.orbit, band.length));
+    }
+}
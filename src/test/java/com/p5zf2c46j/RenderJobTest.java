@@ -0,0 +1,49 @@
+package com.p5zf2c46j;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RenderJobTest {
+
+    private static RenderJob job(String... keyValues) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            values.put(keyValues[i], keyValues[i+1]);
+        }
+        return RenderJob.of(values);
+    }
+
+    @Test
+    public void optInDefaults() {
+        RenderJob job = job();
+        assertFalse(job.raw);
+        assertFalse(job.symmetry);
+        assertFalse(job.useMask);
+        assertFalse(job.perturbation);
+    }
+
+    @Test
+    public void nebulaAddsItsMaxIters() {
+        RenderJob job = job("levels", "64,1024", "nebula", "1024,256,64");
+        assertArrayEquals(new int[] {64, 256, 1024}, job.maxIters());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nebulaNeedsSinglePass() {
+        job("singlePass", "false", "nebula", "8192,1024,128");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nebulaNeedsThreeChannels() {
+        job("nebula", "8192,1024");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void levelsHaveToBeSorted() {
+        job("levels", "64,32");
+    }
+}
@@ -0,0 +1,147 @@
+package com.p5zf2c46j;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class RendererTest {
+    private static final ForkJoinPool pool = new ForkJoinPool(4);
+    private static final int[] maxIters = {64, 512};
+
+    @AfterClass
+    public static void shutdown() {
+        pool.shutdown();
+    }
+
+    private static RenderJob job(String... keyValues) {
+        Map<String, String> values = new HashMap<>();
+        values.put("formula", "mandelbrot");
+        values.put("xcenter", "-0.5");
+        // odd sizes, so neither the bands nor the mirror line up with anything
+        values.put("width", "151");
+        values.put("height", "127");
+        values.put("delta", "0.5");
+        values.put("passes", "1");
+        values.put("levels", "64,512");
+        for (int i = 0; i < keyValues.length; i += 2) {
+            values.put(keyValues[i], keyValues[i+1]);
+        }
+        return RenderJob.of(values);
+    }
+
+    /**
+     * Renders the job in bands of the given height and stacks them back up.
+     */
+    private static int[][] bands(RenderJob job, int rows) throws IOException {
+        int[][] out = new int[maxIters.length][job.width * job.height];
+        for (int from = 0; from < job.height; from += rows) {
+            int to = Math.min(job.height, from + rows);
+            int[][] band = new Renderer(job, maxIters, pool, null, from, to).render(job.passes);
+            for (int b = 0; b < maxIters.length; b++) {
+                System.arraycopy(band[b], 0, out[b], from * job.width, band[b].length);
+            }
+        }
+        return out;
+    }
+
+    private static void assertBandsMatch(RenderJob job) throws IOException {
+        int[][] whole = new Renderer(job, maxIters, pool, null).render(job.passes);
+        assertArrayEquals(whole, bands(job, 30));
+    }
+
+    @Test
+    public void bandsMatchWhole() throws IOException {
+        assertBandsMatch(job());
+    }
+
+    @Test
+    public void mirroredBandsMatchWhole() throws IOException {
+        RenderJob job = job("symmetry", "true", "ycenter", "0");
+        assertTrue(new Renderer(job, maxIters, pool, null).parameters().contains("mirrored"));
+        assertBandsMatch(job);
+    }
+
+    @Test
+    public void adaptiveBandsMatchWhole() throws IOException {
+        assertBandsMatch(job("sampler", "adaptive"));
+        assertBandsMatch(job("sampler", "adaptive", "symmetry", "true"));
+    }
+
+    @Test
+    public void sequenceBandsMatchWhole() throws IOException {
+        assertBandsMatch(job("sampler", "sobol", "symmetry", "true"));
+    }
+
+    @Test
+    public void vectorMatchesScalar() throws IOException {
+        for (String formula : new String[] {"mandelbrot", "mceltic"}) {
+            RenderJob scalar = job("formula", formula, "recording", "twice");
+            int[][] expected = new Renderer(scalar, maxIters, pool, null).render(scalar.passes);
+            RenderJob vector = job("formula", formula, "recording", "twice", "vector", "true");
+            assertArrayEquals(formula, expected, new Renderer(vector, maxIters, pool, null).render(vector.passes));
+        }
+    }
+
+    @Test
+    public void rendersTwiceWithItsOwnAccumulatorEachTime() throws IOException {
+        RenderJob job = job("accumulator", "mapped");
+        Renderer renderer = new Renderer(job, maxIters, pool, null);
+        assertNull(renderer.accumulator);
+        int[][] first = renderer.render(job.passes);
+        assertNull(renderer.accumulator);
+        assertArrayEquals(first, renderer.render(job.passes));
+    }
+
+    @Test
+    public void mappedBucketsOver2GbNeedBands() throws IOException {
+        // 600M pixels with only a few samples, it has to fail before it renders anything
+        RenderJob job = job("accumulator", "mapped", "width", "30000", "height", "20000", "delta", "200");
+        try {
+            new Renderer(job, maxIters, pool, null).render(job.passes);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("tile.rows"));
+        }
+    }
+
+    @Test
+    public void metropolisMatchesGridZoomedIn() throws IOException {
+        RenderJob grid = job("magn", "8", "xcenter", "-0.1", "ycenter", "0.65", "passes", "16");
+        int[] expected = new Renderer(grid, maxIters, pool, null).render(grid.passes)[1];
+        RenderJob metropolis = job("magn", "8", "xcenter", "-0.1", "ycenter", "0.65", "passes", "4", "sampler", "metropolis");
+        int[] actual = new Renderer(metropolis, maxIters, pool, null).render(metropolis.passes)[1];
+
+        double sumE = 0, sumA = 0;
+        for (int i = 0; i < expected.length; i++) {
+            sumE += expected[i];
+            sumA += actual[i];
+        }
+        // same raw counts per sample as the grid
+        assertEquals(1, sumA / sumE * 4, 0.1);
+        double meanE = sumE / expected.length, meanA = sumA / expected.length, cov = 0, varE = 0, varA = 0;
+        for (int i = 0; i < expected.length; i++) {
+            cov += (expected[i] - meanE) * (actual[i] - meanA);
+            varE += (expected[i] - meanE) * (expected[i] - meanE);
+            varA += (actual[i] - meanA) * (actual[i] - meanA);
+        }
+        assertTrue(cov / Math.sqrt(varE * varA) > 0.9);
+    }
+
+    @Test
+    public void parametersTellBandsApart() throws IOException {
+        String plain = new Renderer(job(), maxIters, pool, null, 0, 30).parameters();
+        assertNotEquals(plain, new Renderer(job(), maxIters, pool, null, 30, 60).parameters());
+        for (String[] change : new String[][] {{"sampler", "adaptive"}, {"symmetry", "true"}, {"cycles", "brent"},
+                {"bailout", "16"}, {"delta", "0.25"}}) {
+            assertNotEquals(change[0], plain, new Renderer(job(change), maxIters, pool, null, 0, 30).parameters());
+        }
+        // the number of passes isn't one of them, renders with more passes build on the ones with fewer
+        assertEquals(plain, new Renderer(job("passes", "3"), maxIters, pool, null, 0, 30).parameters());
+    }
+}
@@ -0,0 +1,196 @@
+package com.p5zf2c46j.util;
+
+import com.p5zf2c46j.ToneMap;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+public class PngWriterTest {
+    private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void shutdown() {
+        pool.shutdown();
+    }
+
+    // a gradient, noise and flat patches, so every row filter gets picked somewhere
+    private static short[] samples(int width, int height, int channels, long seed) {
+        Random r = new Random(seed);
+        short[] samples = new short[width * height * channels];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int c = 0; c < channels; c++) {
+                    int v;
+                    if (y % 7 == 0) {
+                        v = 0xFFFF;
+                    } else if (x < width / 3) {
+                        v = (x * 97 + y * 31 + c * 1000) & 0xFFFF;
+                    } else if (x < 2 * width / 3) {
+                        v = r.nextInt(1 << 16);
+                    } else {
+                        v = (y * 257) & 0xFFFF;
+                    }
+                    samples[(x + width * y) * channels + c] = (short) v;
+                }
+            }
+        }
+        return samples;
+    }
+
+    private static void assertDecodes(byte[] png, short[] samples, int width, int height, int channels) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull("ImageIO couldn't read it", image);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        Raster raster = image.getRaster();
+        assertEquals(channels, raster.getNumBands());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int c = 0; c < channels; c++) {
+                    int expected = samples[(x + width * y) * channels + c] & 0xFFFF;
+                    if (raster.getSample(x, y, c) != expected) {
+                        fail("sample " + c + " of pixel (" + x + ", " + y + ") is " + raster.getSample(x, y, c) + ", expected " + expected);
+                    }
+                }
+            }
+        }
+        assertValidZlib(png, height * (1 + 2 * width * channels));
+    }
+
+    /**
+     * Checks the CRC of every chunk and inflates all of the IDATs as one zlib stream, which fails if the adler32 at the
+     * end doesn't match what comes out.
+     */
+    private static void assertValidZlib(byte[] png, int expectedBytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(png));
+        in.skipBytes(8);
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        String type;
+        do {
+            byte[] chunk = new byte[in.readInt() + 4];
+            in.readFully(chunk);
+            CRC32 crc = new CRC32();
+            crc.update(chunk, 0, chunk.length);
+            type = new String(chunk, 0, 4, StandardCharsets.US_ASCII);
+            assertEquals("CRC of " + type, (int) crc.getValue(), in.readInt());
+            if (type.equals("IDAT")) {
+                idat.write(chunk, 4, chunk.length - 4);
+            }
+        } while (!type.equals("IEND"));
+        assertEquals("bytes after IEND", 0, in.available());
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(idat.toByteArray());
+        byte[] out = new byte[1 << 16];
+        long total = 0;
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(out);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    fail("the zlib stream ends early");
+                }
+                total += n;
+            }
+        } catch (DataFormatException e) {
+            fail("bad zlib stream: " + e.getMessage());
+        }
+        assertEquals("bytes after the end of the zlib stream", 0, inflater.getRemaining());
+        assertEquals(expectedBytes, total);
+        inflater.end();
+    }
+
+    private static byte[] write(short[] samples, int width, int height, int channels, int level, int... batches) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngWriter png = new PngWriter(out, width, height, channels, level, pool);
+        int row = 0;
+        for (int count : batches) {
+            short[] batch = new short[count * width * channels];
+            System.arraycopy(samples, row * width * channels, batch, 0, batch.length);
+            png.rows(batch, count);
+            row += count;
+        }
+        png.finish();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void grayInManyStrips() throws IOException {
+        // about 4MB of filtered rows, so a few strips with their checksums combined
+        int width = 1000, height = 2000;
+        short[] samples = samples(width, height, 1, 1);
+        for (int level : new int[] {0, 1, 4, 9}) {
+            assertDecodes(write(samples, width, height, 1, level, height), samples, width, height, 1);
+        }
+    }
+
+    @Test
+    public void rgb() throws IOException {
+        int width = 301, height = 700;
+        short[] samples = samples(width, height, 3, 2);
+        assertDecodes(write(samples, width, height, 3, 4, height), samples, width, height, 3);
+    }
+
+    @Test
+    public void rowsInBatches() throws IOException {
+        // the first row of every batch gets filtered against the last row of the one before
+        int width = 777, height = 1500;
+        short[] samples = samples(width, height, 3, 3);
+        assertDecodes(write(samples, width, height, 3, 1, 1, 2, 300, 0, 1196, 1), samples, width, height, 3);
+    }
+
+    @Test
+    public void tiny() throws IOException {
+        short[] samples = {0, (short) 0xFFFF, 1234};
+        assertDecodes(write(samples, 1, 3, 1, 9, 3), samples, 1, 3, 1);
+        assertDecodes(write(samples, 1, 1, 3, 9, 1), samples, 1, 1, 3);
+    }
+
+    @Test
+    public void bufferedImage() throws IOException {
+        int width = 640, height = 480;
+        int[] vals = new int[width * height];
+        Random r = new Random(4);
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = r.nextInt(1000);
+        }
+        BufferedImage image = ToneMap.toGray(vals, width, height);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngWriter.write(image, out, 4, pool);
+
+        Raster expected = image.getRaster();
+        Raster actual = ImageIO.read(new ByteArrayInputStream(out.toByteArray())).getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(expected.getSample(x, y, 0), actual.getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finishNeedsEveryRow() throws IOException {
+        PngWriter png = new PngWriter(new ByteArrayOutputStream(), 10, 10, 1, 4, pool);
+        png.rows(new short[50], 5);
+        png.finish();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void tooManyRows() throws IOException {
+        PngWriter png = new PngWriter(new ByteArrayOutputStream(), 10, 10, 1, 4, pool);
+        png.rows(new short[110], 11);
+    }
+}